@@ -0,0 +1,30 @@
+//   Entry.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi;
+
+/**
+ * A handle to a rectangle stored in a spatial index, as returned by
+ * SpatialIndex.add(). Keeping the handle allows the rectangle to be deleted
+ * without searching the index for it.
+ */
+public interface Entry {
+
+    /**
+     * Returns the rectangle that was added to the index.
+     */
+    public Rectangle getRef();
+}
@@ -0,0 +1,36 @@
+//   NeighborIterator.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi;
+
+import java.util.Iterator;
+
+/**
+ * Iterates over the rectangles of a spatial index in order of increasing
+ * distance from a query point, as returned by
+ * SpatialIndex.nearestIterator(). The neighbours are found lazily, so asking
+ * for one more neighbour only costs the extra search needed to find it.
+ *
+ * The result of changing the index while iterating is undefined.
+ */
+public interface NeighborIterator extends Iterator<Rectangle> {
+
+    /**
+     * Returns the Euclidean distance from the query point to the rectangle
+     * last returned by next().
+     */
+    public double distance();
+}
@@ -0,0 +1,34 @@
+//   PairVisitor.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi;
+
+/**
+ * Receives the pairs of rectangles found by a join of two spatial indexes,
+ * one pair at a time, as soon as each is found.
+ */
+public interface PairVisitor {
+
+    /**
+     * Called for each pair of rectangles found by the join.
+     *
+     * @param r The rectangle from the index the join was called on.
+     * @param s The rectangle from the other index.
+     *
+     * @return true to continue the join, false to stop it.
+     */
+    public boolean visit(Rectangle r, Rectangle s);
+}
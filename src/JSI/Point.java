@@ -17,67 +17,94 @@
 //  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
 package com.infomatiq.jsi;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 
 /**
  * Currently hardcoded to 2 dimensions, but could be extended.
  *
+ * <p>Coordinates are held in a primitive array, so a point costs a single
+ * double[] rather than one boxed Double per dimension.</p>
+ *
  * @author aled@sourceforge.net
  * @version 1.0b8
  */
-public class Point extends ArrayList<Double> {
+public class Point {
+
+    private double[] coo;
 
-    public Point(Double... coo) {
-        super.addAll(Arrays.asList(coo));
+    public Point(double... coo) {
+        this.coo = coo.clone();
     }
 
     public Point(Point t) {
-        super.addAll(t);
+        this.coo = t.coo.clone();
     }
 
     public int getdim() {
-        return size();
+        return coo.length;
     }
-    
+
+    public int size() {
+        return coo.length;
+    }
+
+    public double get(int i) {
+        return coo[i];
+    }
+
+    /**
+     * @return the backing coordinate array of this point. It is not copied,
+     * so callers must treat it as read only.
+     */
+    public double[] getCoords() {
+        return coo;
+    }
+
+    public void set(int i, double value) {
+        coo[i] = value;
+    }
+
+    // append a coordinate, increasing the dimension of this point by one
+    public void add(double value) {
+        coo = Arrays.copyOf(coo, coo.length + 1);
+        coo[coo.length - 1] = value;
+    }
+
     public Point copy() {
         return new Point(this);
     }
     
     public static Point getminp(Point u, Point v) {
         assert u.getdim() == v.getdim():"getminp dimension match error!";
-        Point p = new Point();
-        for (int i=0; i<u.getdim(); i++) {
-            if (u.get(i) > v.get(i)) {
-                p.add(v.get(i));
-            } else {
-                p.add(u.get(i));
-            }
+        double[] p = new double[u.getdim()];
+        for (int i=0; i<p.length; i++) {
+            p[i] = Math.min(u.coo[i], v.coo[i]);
         }
-        return p;
+        return new Point(p);
     }
 
     public static Point getmaxp(Point u, Point v) {
         assert u.getdim() == v.getdim():"getmaxp dimension match error!";
-        Point p = new Point();
-        for (int i=0; i<u.getdim(); i++) {
-            if (u.get(i) < v.get(i)) {
-                p.add(v.get(i));
-            } else {
-                p.add(u.get(i));
-            }
+        double[] p = new double[u.getdim()];
+        for (int i=0; i<p.length; i++) {
+            p[i] = Math.max(u.coo[i], v.coo[i]);
         }
-        return p;
+        return new Point(p);
     }
 
     public double getmaxdim() {
-        double maxdim = Collections.max(this);
+        double maxdim = Double.NEGATIVE_INFINITY;
+        for (int i=0; i<coo.length; i++) {
+            maxdim = Math.max(maxdim, coo[i]);
+        }
         return maxdim;
     }
 
     public double getmindim() {
-        double mindim = Collections.min(this);
+        double mindim = Double.POSITIVE_INFINITY;
+        for (int i=0; i<coo.length; i++) {
+            mindim = Math.min(mindim, coo[i]);
+        }
         return mindim;
     }
     
@@ -88,24 +115,22 @@ public class Point extends ArrayList<Double> {
         }
     }
     
-    public void set(Double... coo) {
-        clear();
-        addAll(Arrays.asList(coo));
+    public void set(double... coo) {
+        this.coo = coo.clone();
     }
     
     // clone point t to this point
     public void set(Point t) {
-        clear();
-        addAll(t);
+        this.coo = t.coo.clone();
     }
 
     // get distance from point p
-    public Double distance(Point p) {
+    public double distance(Point p) {
         assert getdim() == p.getdim():"Point getdis Dimension Error!";
         double result = 0.0;
         double temp = 0;
-        for (int i=0; i<getdim(); i++) {
-            temp = get(i) - p.get(i);
+        for (int i=0; i<coo.length; i++) {
+            temp = coo[i] - p.coo[i];
             result += temp*temp;
         }
         result = Math.sqrt(result);
@@ -116,75 +141,33 @@ public class Point extends ArrayList<Double> {
     }
 
     // 
-    public Double MINDIST(Rectangle r) {
+    public double MINDIST(Rectangle r) {
         assert getdim() > 1 : "Point init incorrectly before use!";
         assert getdim() == r.getdim() : "P & r MINDIST dimension match error!";
-        Point rs = r.copys();
-        Point rt = r.copyt();
-        double result = 0.0;
-        double temp;
-        for (int i=0; i<getdim(); i++) {
-            if (get(i) < rs.get(i)) {
-                temp = rs.get(i) - get(i);
-                result += temp * temp;
-            } else
-            if (rt.get(i) < get(i)) {
-                temp = get(i) - rt.get(i);
-                result += temp * temp;
-            }
-        }
-        assert !Double.isInfinite(result);
-        assert result >= 0.0;
-
-        return result;
+        return r.mindistSq(coo);
     }
 
     // 
-    public Double MINMAXDIST(Rectangle r) {
+    public double MINMAXDIST(Rectangle r) {
         assert getdim() > 1 : "Point init incorrectly before use!";
         assert getdim() == r.getdim() : "P & r MINDIST dimension match error!";
-        Double[] rmk = new Double[getdim()];
-        Double[] rmi = new Double[getdim()];
-        Double[] result = new Double[getdim()];
-        Point rs = r.copys();
-        Point rt = r.copyt();
-        double rmitemp;
-        double rmktemp;
         double resulttemp = 0.0;
         double resultmin = Double.MAX_VALUE;
 
-        for (int i=0; i<getdim(); i++) {
-            // calculating |pi - rMi|^2
-            if (get(i) <= ((rs.get(i) + rt.get(i)) / 2)) {
-                rmitemp = rs.get(i);
-            } else {
-                rmitemp = rt.get(i);
-            }
-            double temp = get(i) - rmitemp;
-            rmi[i] = temp*temp;
-
-            // calculating |pi - rmk|^2
-            if (get(i) >= ((rs.get(i) + rt.get(i)) / 2)) {
-                rmktemp = rs.get(i);
-            } else {
-                rmktemp = rt.get(i);
-            }
-            temp = get(i) - rmktemp;
-            rmk[i] = temp*temp;
-        }
-
-        // calculate all |pi - rmk|^2 + sigma(|pi - rMi|^2)
-        for (int i=0; i < getdim(); i++) {
-            resulttemp += rmi[i];
-        }
-        for (int i=0; i < getdim(); i++) {
-            result[i] = resulttemp - rmi[i] + rmk[i];
+        // calculate sigma(|pi - rMi|^2) over all dimensions
+        for (int i=0; i<coo.length; i++) {
+            double temp = coo[i] - rMi(r, i);
+            resulttemp += temp*temp;
         }
 
-        // find the min result
-        for (int i=0; i<getdim(); i++) {
-            if (result[i] <= resultmin) {
-                resultmin = result[i];
+        // calculate all |pi - rmk|^2 + sigma(|pi - rMi|^2) - |pi - rMi|^2,
+        // and find the min result
+        for (int i=0; i<coo.length; i++) {
+            double rmi = coo[i] - rMi(r, i);
+            double rmk = coo[i] - rmk(r, i);
+            double result = resulttemp - rmi*rmi + rmk*rmk;
+            if (result <= resultmin) {
+                resultmin = result;
             }
         }
 
@@ -193,23 +176,37 @@ public class Point extends ArrayList<Double> {
 
         return resultmin;
     }
+
+    // the face of r in dimension i on the same side of its centre as this point
+    private double rMi(Rectangle r, int i) {
+        if (coo[i] <= ((r.getMin(i) + r.getMax(i)) / 2)) {
+            return r.getMin(i);
+        }
+        return r.getMax(i);
+    }
+
+    // the face of r in dimension i on the opposite side of its centre
+    private double rmk(Rectangle r, int i) {
+        if (coo[i] >= ((r.getMin(i) + r.getMax(i)) / 2)) {
+            return r.getMin(i);
+        }
+        return r.getMax(i);
+    }
     
     public void rescale(Rectangle r) {
         assert getdim() == r.getdim();
-        Point rs = r.copys();
-        Point rt = r.copyt();
         for (int i=0; i <getdim(); i++) {
-            Double offset = rs.get(i);
-            Double length = rt.get(i)-rs.get(i);
-            this.set(i, this.get(i)-offset);
+            double offset = r.getMin(i);
+            double length = r.getMax(i) - r.getMin(i);
+            coo[i] -= offset;
             
             // If span of bound in dimenstion i is 0, then do nothing
             // to scaling,
             if (length > 0.0) {
-                this.set(i, this.get(i)/length);
+                coo[i] /= length;
             }
-            assert !this.get(i).isInfinite();
-            assert !this.get(i).isNaN();
+            assert !Double.isInfinite(coo[i]);
+            assert !Double.isNaN(coo[i]);
         }
     }
 
@@ -25,80 +25,100 @@ package com.infomatiq.jsi;
  */
 public class Rectangle {
 
+    private static final double[] EMPTY = new double[0];
+
     /**
      * use primitives instead of arrays for the coordinates of the rectangle, to
      * reduce memory requirements.
      */
-//    public Double minX, minY, maxX, maxY;
-    // s,t two point construct a rectangle. s always be the min point
-    private Point s;
-    private Point t;
+    // min, max are the two corners of the rectangle, stored as flat primitive
+    // arrays. min always holds the lower bound in every dimension.
+    private double[] min;
+    private double[] max;
 
     public Rectangle() {
-        this.s = new Point();
-        this.t = new Point();
+        this.min = EMPTY;
+        this.max = EMPTY;
     }
 
     // treate rectangle as a point
     public Rectangle(Point u) {
-        this.s = null;
         assert u.getdim() > 1 : "Rectangle init Dimension Error";
-        s = u;
-        t = u;
+        min = new double[u.getdim()];
+        max = new double[u.getdim()];
+        for (int i=0; i<min.length; i++) {
+            min[i] = u.get(i);
+            max[i] = u.get(i);
+        }
     }
 
     public Rectangle(Point u, Point v) {
-        this.s = null;
         assert u.getdim() > 1 : "Rectangle init Dimension Error";
         assert v.getdim() > 1 : "Rectangle init Dimension Error";
         assert u.getdim() == v.getdim() : "Rectangle init Dimension Error";
-        s = this.getminp(u, v);
-        t = this.getmaxp(u, v);
+        min = new double[u.getdim()];
+        max = new double[u.getdim()];
+        for (int i=0; i<min.length; i++) {
+            min[i] = Math.min(u.get(i), v.get(i));
+            max[i] = Math.max(u.get(i), v.get(i));
+        }
+    }
 
+    /**
+     * Creates a rectangle from the coordinates of its two corners. The
+     * arrays are copied.
+     */
+    public Rectangle(double[] min, double[] max) {
+        assert min.length == max.length : "Rectangle init Dimension Error";
+        this.min = new double[min.length];
+        this.max = new double[max.length];
+        for (int i=0; i<min.length; i++) {
+            this.min[i] = Math.min(min[i], max[i]);
+            this.max[i] = Math.max(min[i], max[i]);
+        }
     }
 
     public Rectangle(Rectangle r) {
-        this.s = null;
-        s = r.copys();
-        t = r.copyt();
+        min = r.min.clone();
+        max = r.max.clone();
     }
 
     public Point copys() {
-        return s.copy();
+        return new Point(min);
     }
 
     public Point copyt() {
-        return t.copy();
-    }
-
-    private Point getminp(Point u, Point v) {
-        assert u.getdim() > 1 : "Rectangle getminp Dimension Error";
-        assert v.getdim() > 1 : "Rectangle getminp Dimension Error";
-        assert u.getdim() == v.getdim() : "Rectangle getminp Dimension match Error";
-        Point p = new Point();
-        for (int i=0; i<u.getdim(); i++) {
-            if (u.get(i) > v.get(i)) {
-                p.add(v.get(i));
-            } else {
-                p.add(u.get(i));
-            }
-        }
-        return p;
+        return new Point(max);
+    }
+
+    /**
+     * @return the lower bound of this rectangle in dimension i
+     */
+    public double getMin(int i) {
+        return min[i];
+    }
+
+    /**
+     * @return the upper bound of this rectangle in dimension i
+     */
+    public double getMax(int i) {
+        return max[i];
+    }
+
+    /**
+     * Overwrite the bounds of this rectangle in dimension i. Only for use by
+     * subclasses that maintain their bounds in place.
+     */
+    protected void setBounds(int i, double lo, double hi) {
+        min[i] = lo;
+        max[i] = hi;
     }
 
     public Point getmaxp(Point u, Point v) {
         assert u.getdim() > 1 : "Rectangle getmaxp Dimension Error";
         assert v.getdim() > 1 : "Rectangle getmaxp Dimension Error";
         assert u.getdim() == v.getdim() : "Rectangle getmaxp Dimension match Error";
-        Point p = new Point();
-        for (int i=0; i<u.getdim(); i++) {
-            if (u.get(i) < v.get(i)) {
-                p.add(v.get(i));
-            } else {
-                p.add(u.get(i));
-            }
-        }
-        return p;
+        return Point.getmaxp(u, v);
     }
 
     /**
@@ -108,20 +128,16 @@ public class Rectangle {
      */
     public Rectangle copy() {
         assert getdim() > 1 : "R init incorrectly before use!";
-        return new Rectangle(s, t);
+        return new Rectangle(this);
     }
 
     public void clear() {
-        s.clear();
-        t.clear();
+        min = EMPTY;
+        max = EMPTY;
     }
 
     public int getdim() {
-        if (s == null) {
-            return 0;
-        } else {
-            return s.getdim();
-        }
+        return min.length;
     }
 
     /**
@@ -132,13 +148,11 @@ public class Rectangle {
         assert getdim() > 1 : "R init incorrectly before use!";
         assert this.getdim() == r.getdim() : "Rectangle edgeOverlaps Dimension match Error";
 
-        Point rs = r.copys();
-        Point rt = r.copyt();
         for (int i=0; i<getdim(); i++) {
-            if (rs.get(i) == s.get(i)) {
+            if (r.min[i] == min[i]) {
                 return true;
             }
-            if (rt.get(i) == t.get(i)) {
+            if (r.max[i] == max[i]) {
                 return true;
             }
         }
@@ -156,13 +170,11 @@ public class Rectangle {
         assert getdim() > 1 : "R init incorrectly before use!";
         assert this.getdim() == r.getdim() : "Rectangle intersects Dimension match Error";
 
-        Point rs = r.copys();
-        Point rt = r.copyt();
         for (int i=0; i<getdim(); i++) {
-            if (rs.get(i) > t.get(i)) {
+            if (r.min[i] > max[i]) {
                 return false;
             }
-            if (rt.get(i) < s.get(i)) {
+            if (r.max[i] < min[i]) {
                 return false;
             }
         }
@@ -173,13 +185,11 @@ public class Rectangle {
         assert getdim() > 1 : "R init incorrectly before use!";
         assert this.getdim() == r.getdim() : "Rectangle contains Dimension match Error";
 
-        Point rs = r.copys();
-        Point rt = r.copyt();
         for (int i=0; i<getdim(); i++) {
-            if (rt.get(i) > t.get(i)) {
+            if (r.max[i] > max[i]) {
                 return false;
             }
-            if (rs.get(i) < s.get(i)) {
+            if (r.min[i] < min[i]) {
                 return false;
             }
         }
@@ -198,13 +208,11 @@ public class Rectangle {
     public boolean containedBy(Rectangle r) {
         assert getdim() > 1 : "R init incorrectly before use!";
 
-        Point rs = r.copys();
-        Point rt = r.copyt();
         for (int i=0; i<getdim(); i++) {
-            if (rt.get(i) < t.get(i)) {
+            if (r.max[i] < max[i]) {
                 return false;
             }
-            if (rs.get(i) > s.get(i)) {
+            if (r.min[i] > min[i]) {
                 return false;
             }
         }
@@ -220,23 +228,23 @@ public class Rectangle {
      *
      * @return distance between this rectangle and the passed point.
      */
-    public Double getdis(Point p) {
+    public double getdis(Point p) {
         assert getdim() > 1 : "R init incorrectly before use!";
         assert getdim() == p.getdim() : "R & P distance Dimension match Error";
 
-        Double disSq = 0.0;
+        double disSq = 0.0;
 
         for (int i=0; i<this.getdim(); i++) {
-            Double temp = p.get(i) - s.get(i);
+            double temp = p.get(i) - min[i];
             if (temp < 0) {
                 disSq += (temp * temp);
             }
-            temp = p.get(i) - t.get(i);
+            temp = p.get(i) - max[i];
             if (temp > 0) {
                 disSq += (temp * temp);
             }
         }
-        Double result = Math.sqrt(disSq);
+        double result = Math.sqrt(disSq);
         assert !Double.isInfinite(result);
         assert result >= 0.0;
 
@@ -251,27 +259,28 @@ public class Rectangle {
      *
      * @return distance between this rectangle and the passed rectangle
      */
-    public Double getdis(Rectangle r) {
+    public double getdis(Rectangle r) {
         assert getdim() > 1 : "R init incorrectly before use!";
         assert getdim() == r.getdim() : "R & R distance Dimension match Error";
 
-        Double disSq = 0.0;
+        double disSq = 0.0;
         for (int i=0; i<getdim(); i++) {
-            Double greatestMin = Math.max(s.get(i), r.copys().get(i));
-            Double leastMax = Math.min(t.get(i), r.copyt().get(i));
+            double greatestMin = Math.max(min[i], r.min[i]);
+            double leastMax = Math.min(max[i], r.max[i]);
             if (greatestMin > leastMax) {
-                disSq += (Double) Math.pow((greatestMin - leastMax), 2);
+                double temp = greatestMin - leastMax;
+                disSq += temp * temp;
             }
         }
-        Double result = Math.sqrt(disSq);
+        double result = Math.sqrt(disSq);
         assert !Double.isInfinite(result);
         assert result >= 0.0;
         return result;
     }
 
-    public Double getWidth(int i) {
+    public double getWidth(int i) {
         assert i>-1 && i<getdim();
-        return t.get(i)-s.get(i);
+        return max[i]-min[i];
     }
     /**
      * Calculate the area by which this rectangle would be enlarged if added to
@@ -282,10 +291,28 @@ public class Rectangle {
      *
      * @return enlargement
      */
-    public Double enlargement(Rectangle r) {
+    public double enlargement(Rectangle r) {
+        return enlargementArea(r);
+    }
+
+    /**
+     * Same as enlargement(), but computed in place from the coordinates of
+     * both rectangles, without building the union rectangle.
+     *
+     * @param r Rectangle to union with this rectangle
+     *
+     * @return enlargement
+     */
+    public double enlargementArea(Rectangle r) {
         assert getdim() > 1 : "R init incorrectly before use!";
         assert this.getdim() == r.getdim() : "R enlargement Dimension match Error";
-        Double result = union(r).area()- area();
+        double area = 1.0;
+        double unionArea = 1.0;
+        for (int i=0; i<min.length; i++) {
+            area *= max[i] - min[i];
+            unionArea *= Math.max(max[i], r.max[i]) - Math.min(min[i], r.min[i]);
+        }
+        double result = unionArea - area;
         assert !Double.isInfinite(result);
         assert result >= 0.0;
         return result;
@@ -296,17 +323,54 @@ public class Rectangle {
      *
      * @return The area of this rectangle
      */
-    public Double area() {
+    public double area() {
         assert getdim() > 1 : "R init incorrectly before use!";
-        Double result = 1.0;
+        double result = 1.0;
         for (int i=0; i<getdim(); i++) {
-            result *= t.get(i) - s.get(i);
+            result *= max[i] - min[i];
         }
         assert !Double.isInfinite(result);
         assert result >= 0.0;
         return result;
     }
 
+    /**
+     * Compute the margin of this rectangle, i.e. the sum of its edge lengths
+     * along every dimension.
+     *
+     * @return The margin of this rectangle
+     */
+    public double margin() {
+        assert getdim() > 1 : "R init incorrectly before use!";
+        double result = 0.0;
+        for (int i=0; i<getdim(); i++) {
+            result += max[i] - min[i];
+        }
+        return result;
+    }
+
+    /**
+     * Compute the area of the intersection of this rectangle and the passed
+     * rectangle. Neither rectangle is altered.
+     *
+     * @param r The rectangle to intersect with this rectangle
+     *
+     * @return The area of the intersection, or zero if they do not intersect
+     */
+    public double overlap(Rectangle r) {
+        assert getdim() > 1 : "R init incorrectly before use!";
+        assert this.getdim() == r.getdim() : "R overlap Dimension match Error";
+        double result = 1.0;
+        for (int i=0; i<getdim(); i++) {
+            double width = Math.min(max[i], r.max[i]) - Math.max(min[i], r.min[i]);
+            if (width <= 0.0) {
+                return 0.0;
+            }
+            result *= width;
+        }
+        return result;
+    }
+
     /**
      * Computes the union of this rectangle and the passed rectangle, storing
      * the result in this rectangle.
@@ -318,42 +382,55 @@ public class Rectangle {
             assert getdim() == r.getdim() : "R enlarge R Dimension match Error";
         } else {
             assert getdim() == 0:"R init incorrectly before use!";
+            min = r.min.clone();
+            max = r.max.clone();
+            return;
+        }
+        for (int i=0; i<min.length; i++) {
+            if (min[i] > r.min[i]) {
+                min[i] = r.min[i];
+            }
+            if (max[i] < r.max[i]) {
+                max[i] = r.max[i];
+            }
         }
-        enlarge(r.copys());
-        enlarge(r.copyt());
     }
 
     public void enlarge(Point p) {
         if (getdim() > 0) {
             assert getdim() == p.getdim() : "R enlarge p dimension match error!";
             for (int i=0; i<getdim(); i++) {
-                if (s.get(i) > p.get(i)) {
-                    s.set(i, p.get(i));
+                if (min[i] > p.get(i)) {
+                    min[i] = p.get(i);
                 }
-                if (t.get(i) < p.get(i)) {
-                    t.set(i, p.get(i));
+                if (max[i] < p.get(i)) {
+                    max[i] = p.get(i);
                 }
             }
         } else {
             assert getdim() == 0 : "R init incorrectly before use!";
-            s = p.copy();
-            t = p.copy();
+            min = new double[p.getdim()];
+            max = new double[p.getdim()];
+            for (int i=0; i<min.length; i++) {
+                min[i] = p.get(i);
+                max[i] = p.get(i);
+            }
         }
 
         assert getdim() == p.getdim() : "R enlarge p dimension match failed!";
     }
 
-    public Double distanceSq(Point p) {
+    public double distanceSq(Point p) {
         assert getdim() > 1 : "R init incorrectly before use!";
         assert this.getdim() == p.getdim() : "R & p distanceSq dimension match error!";
-        Double result = 0.0;
+        double result = 0.0;
         for (int i=0; i<getdim(); i++) {
-            if (s.get(i) > p.get(i)) {
-                Double temp = s.get(i) - p.get(i);
+            if (min[i] > p.get(i)) {
+                double temp = min[i] - p.get(i);
                 result += (temp * temp);
             }
-            if (t.get(i) < p.get(i)) {
-                Double temp = p.get(i) - t.get(i);
+            if (max[i] < p.get(i)) {
+                double temp = p.get(i) - max[i];
                 result += (temp * temp);
             }
         }
@@ -388,10 +465,10 @@ public class Rectangle {
             return false;
         }
         for (int i=0; i<getdim(); i++) {
-            if (s.get(i) != r.copys().get(i)) {
+            if (min[i] != r.min[i]) {
                 return false;
             }
-            if (t.get(i) != r.copyt().get(i)) {
+            if (max[i] != r.max[i]) {
                 return false;
             }
         }
@@ -400,22 +477,58 @@ public class Rectangle {
     
     public void rescale(Rectangle r) {
         assert getdim() == r.getdim();
-        s.rescale(r);
-        t.rescale(r);
+        for (int i=0; i<getdim(); i++) {
+            double offset = r.min[i];
+            double length = r.max[i] - r.min[i];
+            min[i] -= offset;
+            max[i] -= offset;
+
+            // If span of bound in dimenstion i is 0, then do nothing
+            // to scaling,
+            if (length > 0.0) {
+                min[i] /= length;
+                max[i] /= length;
+            }
+            assert !Double.isInfinite(min[i]) && !Double.isInfinite(max[i]);
+            assert !Double.isNaN(min[i]) && !Double.isNaN(max[i]);
+        }
     }
 
-    public Double MINDIST(Point p) {
+    public double MINDIST(Point p) {
         assert getdim() > 1 : "Rectangle init incorrectly before use!";
         assert getdim() == p.getdim() : "P & r MINDIST dimension match error!";
+        return mindistSq(p.getCoords());
+    }
+
+    /**
+     * Squared MINDIST between this rectangle and the passed rectangle, zero
+     * if they intersect.
+     */
+    public double mindistSq(Rectangle r) {
+        assert getdim() == r.getdim() : "R & R mindistSq dimension match error!";
+        double result = 0.0;
+        for (int i=0; i<min.length; i++) {
+            double temp = Math.max(min[i] - r.max[i], 0.0) + Math.max(r.min[i] - max[i], 0.0);
+            result += temp * temp;
+        }
+        return result;
+    }
+
+    /**
+     * Squared MINDIST between this rectangle and the point whose coordinates
+     * are q. Nothing is allocated, so this is the form used when scanning the
+     * entries of a node.
+     */
+    public double mindistSq(double[] q) {
         double result = 0.0;
         double temp;
-        for (int i=0; i<getdim(); i++) {
-            if (p.get(i) < s.get(i)) {
-                temp = s.get(i) - p.get(i);
+        for (int i=0; i<min.length; i++) {
+            if (q[i] < min[i]) {
+                temp = min[i] - q[i];
                 result += temp * temp;
             } else
-            if (t.get(i) < p.get(i)) {
-                temp = p.get(i) - t.get(i);
+            if (max[i] < q[i]) {
+                temp = q[i] - max[i];
                 result += temp * temp;
             }
         }
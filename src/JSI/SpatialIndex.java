@@ -18,6 +18,7 @@
 package com.infomatiq.jsi;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -41,10 +42,10 @@ public interface SpatialIndex {
      * Adds a new rectangle to the spatial index
      *
      * @param r The rectangle to add to the spatial index.
-     * @param id The ID of the rectangle to add to the spatial index. The result
-     * of adding more than one rectangle with the same ID is undefined.
+     *
+     * @return a handle to the new entry, which can be passed to delete(Entry)
      */
-    public void add(Rectangle r);
+    public Entry add(Rectangle r);
 
     /**
      * Deletes a rectangle from the spatial index
@@ -57,6 +58,16 @@ public interface SpatialIndex {
      */
     public boolean delete(Rectangle r);
 
+    /**
+     * Deletes an entry from the spatial index, given the handle returned when
+     * it was added. This avoids searching the index for the rectangle.
+     *
+     * @param e The entry to delete from the spatial index
+     *
+     * @return true if the entry was deleted, false if it is not in this index
+     */
+    public boolean delete(Entry e);
+
     /**
      * Finds the nearest rectangles to the passed rectangle and calls
      * v.execute(id) for each one.
@@ -112,27 +123,70 @@ public interface SpatialIndex {
      */
 //    public void nearestNUnsorted(Point p, TIntProcedure v, int n, Double distance);
 
+    /**
+     * Tests whether any rectangle in the index intersects the passed
+     * rectangle. The search stops at the first one found.
+     *
+     * @param r The rectangle to test.
+     */
+    public boolean intersects(Rectangle r);
+
     /**
      * Finds all rectangles that intersect the passed rectangle.
      *
      * @param r The rectangle for which this method finds intersecting
      * rectangles.
      *
-     * @param ip The IntProcedure whose execute() method is is called for each
-     * intersecting rectangle.
+     * @param v The visitor whose visit() method is called for each
+     * intersecting rectangle. The query stops if it returns false.
+     *
+     * @return false if the visitor stopped the query, true otherwise.
      */
-    public boolean intersects(Rectangle r);
+    public boolean intersects(Rectangle r, Visitor v);
+
+    /**
+     * Finds all rectangles within a distance of the passed point.
+     *
+     * @param p The point for which this method finds nearby rectangles.
+     *
+     * @param distance The greatest Euclidean distance from p to a rectangle
+     * that is found.
+     *
+     * @param v The visitor whose visit() method is called for each
+     * rectangle found. The query stops if it returns false.
+     *
+     * @return false if the visitor stopped the query, true otherwise.
+     */
+    public boolean withinDistance(Point p, double distance, Visitor v);
 
     /**
      * Finds all rectangles contained by the passed rectangle.
      *
      * @param r The rectangle for which this method finds contained rectangles.
-     *
-     * @param ip The procedure whose visit() method is is called for each
-     * contained rectangle.
      */
     public ArrayList<Rectangle> contains(Rectangle r);
 
+    /**
+     * Finds all rectangles contained by the passed rectangle.
+     *
+     * @param r The rectangle for which this method finds contained rectangles.
+     *
+     * @param v The visitor whose visit() method is called for each
+     * contained rectangle. The query stops if it returns false.
+     *
+     * @return false if the visitor stopped the query, true otherwise.
+     */
+    public boolean contains(Rectangle r, Visitor v);
+
+    /**
+     * Counts the rectangles contained by the passed rectangle, without
+     * finding them. This is the size of the list contains(r) returns.
+     *
+     * @param r The rectangle for which this method counts contained
+     * rectangles.
+     */
+    public int count(Rectangle r);
+
     /**
      * Returns the number of entries in the spatial index
      */
@@ -153,5 +207,29 @@ public interface SpatialIndex {
 
     public ArrayList<Rectangle> nearestN(Point p, int k);
 
+    /**
+     * Finds the k nearest rectangles to each of a group of points, as
+     * nearestN does for one point.
+     *
+     * @param points The points for which this method finds the nearest
+     * neighbours.
+     *
+     * @param k The desired number of rectangles to find for each point.
+     *
+     * @return the nearest rectangles of each point, nearest first, in the
+     * order of points.
+     */
+    public ArrayList<ArrayList<Rectangle>> nearestNBatch(List<Point> points, int k);
+
+    /**
+     * Returns the rectangles of the index in order of increasing distance
+     * from p. Unlike nearestN, the number of neighbours need not be known in
+     * advance; the search state is kept between calls to next(), so each
+     * further neighbour only costs the extra traversal needed to find it.
+     *
+     * @param p The point for which this method finds the nearest neighbours.
+     */
+    public NeighborIterator nearestIterator(Point p);
+
 
 }
@@ -0,0 +1,33 @@
+//   Visitor.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi;
+
+/**
+ * Receives the rectangles found by a query on a spatial index, one at a
+ * time, as soon as each is found.
+ */
+public interface Visitor {
+
+    /**
+     * Called for each rectangle found by the query.
+     *
+     * @param r The rectangle found.
+     *
+     * @return true to continue the query, false to stop it.
+     */
+    public boolean visit(Rectangle r);
+}
@@ -4,9 +4,9 @@
  */
 package com.infomatiq.jsi.detect;
 
+import com.infomatiq.jsi.Entry;
 import com.infomatiq.jsi.Point;
 import com.infomatiq.jsi.Rectangle;
-import com.infomatiq.jsi.SpatialIndex;
 import com.infomatiq.jsi.rtree.RTree;
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
@@ -14,6 +14,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,6 +37,8 @@ public class Detect {
         int K = 30;
         double THRESHOLD_PERCENTAGE = 0.99;
         double THRESHOLD = 2.0;
+        int THREADS = 1;
+        int BATCH = 64;
 
         // command line argument parsing
         for (int i = 0; i < args.length; i++) {
@@ -90,17 +93,36 @@ public class Detect {
                 THRESHOLD = Double.parseDouble(args[i]);
                 continue;
             }
+            if (args[i].equals("-threads") && i + 1 < args.length) {
+                i++;
+                THREADS = Integer.parseInt(args[i]);
+                continue;
+            }
+            if (args[i].equals("-batch") && i + 1 < args.length) {
+                i++;
+                BATCH = Integer.parseInt(args[i]);
+                continue;
+            }
             usage();
             return;
         }
+        // A single thread tests one point at a time
+        if (THREADS <= 1 || BATCH < 1) {
+            THREADS = 1;
+            BATCH = 1;
+        }
 
         // Use rects as a database to store these training points
 //      ArrayList<Date> times = new ArrayList<Date>();
 //      DateFormat df = new SimpleDateFormat("yyyy-MM-dd_HH:mm:ss");
         ArrayList<Rectangle> rects = new ArrayList<Rectangle>();
         ArrayList<Rectangle> rects_norm = new ArrayList<Rectangle>();
-        SpatialIndex si = new RTree();
-        SpatialIndex si_norm = new RTree();
+        // handles of the entries of rects and rects_norm in the R-Trees, in
+        // the same order, so that the oldest can be deleted without a search
+        ArrayList<Entry> entries;
+        ArrayList<Entry> entries_norm;
+        RTree si = new RTree();
+        RTree si_norm = new RTree();
         Rectangle bound;
 
         {
@@ -133,13 +155,12 @@ public class Detect {
                 }
                 Rectangle r = new Rectangle(p, p);
                 rects.add(r);
-                si.add(r);
 //              times.add(df.parse(ele[0]));
                 if (RTREE_SIZE > 0 && rects.size() >= RTREE_SIZE) {
-                    si.delete(rects.get(0));
                     rects.remove(0);
                 }
             }
+            entries = si.bulkLoad(rects);
             if (rects.size() < RTREE_SIZE || RTREE_SIZE < 1) {
                 RTREE_SIZE = rects.size();
             }
@@ -169,16 +190,12 @@ public class Detect {
 
         {
             System.out.printf("Adding points into R-Tree...\n");
-            for (int i = 0; i < rects_norm.size(); i++) {
-                si_norm.add(rects_norm.get(i));
-            }
+            entries_norm = si_norm.bulkLoad(rects_norm);
 
             if (THRESHOLD < 0.0) {
-                Double[] value = new Double[si_norm.size()];
-                for (int i = 0; i < value.length; i++) {
-                    LOF trainlof = LOF.lof(rects_norm.get(i).copys(), K, rects_norm, si_norm);
-                    value[i] = trainlof.getfactor();
-                }
+                // the LOF of every training point, from a single all-kNN
+                // self-join of the R-Tree
+                double[] value = LOF.lof(si_norm.allKnn(K));
                 Arrays.sort(value);
                 THRESHOLD = value[(int) (value.length * THRESHOLD_PERCENTAGE) - 1];
                 System.out.printf("MIN LOF %f, MAX LOF %f, %%%f is %f.\n", value[0], value[value.length - 1], THRESHOLD_PERCENTAGE * 100, THRESHOLD);
@@ -201,77 +218,127 @@ public class Detect {
                 Logger.getLogger(LOF.class.getName()).log(Level.SEVERE, null, ex);
             }
 
+            // With several threads, the test points are read in batches. The
+            // LOFs of a batch are computed in parallel against a snapshot of
+            // the R-Tree, then the points are tested in order as before. The
+            // updates made by the earlier points of the batch may change the
+            // LOF of a later one; if so, it is computed again against the
+            // updated R-Tree, so the result is the same as with one thread.
+            ForkJoinPool pool = THREADS > 1 ? new ForkJoinPool(THREADS) : null;
+            ArrayList<String[]> batch = new ArrayList<String[]>();
+            boolean eof = false;
             while (true) {
-                try {
-                    if ((line = br.readLine()) == null) {
-                        break;
+                while (!eof && batch.size() < BATCH) {
+                    try {
+                        if ((line = br.readLine()) == null) {
+                            eof = true;
+                            break;
+                        }
+                    } catch (IOException ex) {
+                        Logger.getLogger(LOF.class.getName()).log(Level.SEVERE, null, ex);
                     }
-                } catch (IOException ex) {
-                    Logger.getLogger(LOF.class.getName()).log(Level.SEVERE, null, ex);
-                }
-                String[] ele = line.split("\t");
-                if (ele.length - 1 != si_norm.getdim()) {
-                    System.out.printf("Warning: Point %s in testing data is collected improperly.\n", ele[0]);
-                    continue;
+                    String[] ele = line.split("\t");
+                    if (ele.length - 1 != si_norm.getdim()) {
+                        System.out.printf("Warning: Point %s in testing data is collected improperly.\n", ele[0]);
+                        continue;
+                    }
+                    batch.add(ele);
                 }
-                Point p = new Point();
-                for (int i = 1; i < ele.length; i++) {
-                    p.add(Double.parseDouble(ele[i]));
+                if (batch.isEmpty()) {
+                    break;
                 }
-                Rectangle r = new Rectangle(p, p);
-                Rectangle r_norm = r.copy();
 
-                if (NORMALIZATION == true) {
-                    r_norm.rescale(bound);
-                }
+                ArrayList<Rectangle> batch_rects = new ArrayList<Rectangle>();
+                ArrayList<Rectangle> batch_norm = new ArrayList<Rectangle>();
+                ArrayList<Point> batch_points = new ArrayList<Point>();
+                for (String[] ele : batch) {
+                    Point p = new Point();
+                    for (int i = 1; i < ele.length; i++) {
+                        p.add(Double.parseDouble(ele[i]));
+                    }
+                    Rectangle r = new Rectangle(p, p);
+                    Rectangle r_norm = r.copy();
 
-                LOF testlof = LOF.lof(r_norm.copys(), K, rects_norm, si_norm);
-                if (testlof.getfactor() >= THRESHOLD) {
-                    anomaly++;
-                    System.out.print(ele[0]);
-                    System.out.printf("\t%f", testlof.getfactor());
-                    if (REASONING == true) {
-                        testlof.reasoning();
-                        for (int i = 0; i < r_norm.getdim(); i++) {
-                            System.out.printf("%.1f%%\t", testlof.getcon(i) / testlof.getfactor() * 100);
-                        }
+                    if (NORMALIZATION == true) {
+                        r_norm.rescale(bound);
                     }
-                    System.out.printf("\n");
-                    continue;
-                } else if (VERBOSE == true) {
-                    System.out.print(ele[0]);
-                    System.out.printf("\tnormal\t%f", testlof.getfactor());
-                    System.out.printf("\n");
+                    batch_rects.add(r);
+                    batch_norm.add(r_norm);
+                    batch_points.add(r_norm.copys());
                 }
+                ArrayList<LOF> batch_lofs = null;
+                if (pool != null) {
+                    batch_lofs = LOF.scoreBatch(batch_points, K, si_norm.snapshot(), pool);
+                }
+                // points added to and deleted from si_norm since the batch
+                // was scored
+                ArrayList<Rectangle> changed = new ArrayList<Rectangle>();
 
-                if (UPDATE == true) {
-                    si_norm.delete(rects_norm.get(0));
-                    si_norm.add(r_norm);
-                    rects_norm.remove(0);
-                    rects_norm.add(r_norm);
-                    si.delete(rects.get(0));
-                    si.add(r);
-                    rects.remove(0);
-                    rects.add(r);
-                    if (RESCALING == true) {
-                        if (!checkNorm(si_norm.getBounds(), 0.1)) {
-                            System.out.println("Rescaling...");
-                            bound = si.getBounds();
-                            rects_norm.clear();
-                            for (int i = 0; i < rects.size(); i++) {
-                                rects_norm.add(rects.get(i).copy());
-                            }
-                            for (int i = 0; i < rects_norm.size(); i++) {
-                                rects_norm.get(i).rescale(bound);
-                            }
-                            si_norm = new RTree();
-                            for (int i = 0; i < rects_norm.size(); i++) {
-                                si_norm.add(rects_norm.get(i));
+                int tested = 0;
+                while (tested < batch.size()) {
+                    String[] ele = batch.get(tested);
+                    Rectangle r = batch_rects.get(tested);
+                    Rectangle r_norm = batch_norm.get(tested);
+                    LOF testlof = batch_lofs == null ? null : batch_lofs.get(tested);
+                    tested++;
+
+                    if (testlof == null || testlof.dependsOn(changed)) {
+                        testlof = LOF.lof(r_norm.copys(), K, rects_norm, si_norm);
+                    }
+                    if (testlof.getfactor() >= THRESHOLD) {
+                        anomaly++;
+                        System.out.print(ele[0]);
+                        System.out.printf("\t%f", testlof.getfactor());
+                        if (REASONING == true) {
+                            testlof.reasoning();
+                            for (int i = 0; i < r_norm.getdim(); i++) {
+                                System.out.printf("%.1f%%\t", testlof.getcon(i) / testlof.getfactor() * 100);
                             }
                         }
+                        System.out.printf("\n");
+                        continue;
+                    } else if (VERBOSE == true) {
+                        System.out.print(ele[0]);
+                        System.out.printf("\tnormal\t%f", testlof.getfactor());
+                        System.out.printf("\n");
                     }
 
+                    if (UPDATE == true) {
+                        changed.add(rects_norm.get(0));
+                        changed.add(r_norm);
+                        si_norm.delete(entries_norm.remove(0));
+                        entries_norm.add(si_norm.add(r_norm));
+                        rects_norm.remove(0);
+                        rects_norm.add(r_norm);
+                        si.delete(entries.remove(0));
+                        entries.add(si.add(r));
+                        rects.remove(0);
+                        rects.add(r);
+                        if (RESCALING == true) {
+                            if (!checkNorm(si_norm.getBounds(), 0.1)) {
+                                System.out.println("Rescaling...");
+                                bound = si.getBounds();
+                                rects_norm.clear();
+                                for (int i = 0; i < rects.size(); i++) {
+                                    rects_norm.add(rects.get(i).copy());
+                                }
+                                for (int i = 0; i < rects_norm.size(); i++) {
+                                    rects_norm.get(i).rescale(bound);
+                                }
+                                si_norm = new RTree();
+                                entries_norm = si_norm.bulkLoad(rects_norm);
+                                // the rest of the batch was normalized with
+                                // the old bound, so it is read again
+                                break;
+                            }
+                        }
+
+                    }
                 }
+                batch.subList(0, tested).clear();
+            }
+            if (pool != null) {
+                pool.shutdown();
             }
             System.out.printf("%d anomalies found.\n", anomaly);
 
@@ -318,5 +385,7 @@ public class Detect {
         System.out.println("-v print LOF value whether it is an anomaly");
         System.out.println("-norm localy normalize each dimension to 0~1");
         System.out.println("-reasoning tell how much LOF drops if a dimension is taken out");
+        System.out.println("-threads the number of threads computing LOF, 1 by default");
+        System.out.println("-batch the number of test points scored together by the threads, 64 by default");
     }
 }
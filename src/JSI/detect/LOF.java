@@ -7,10 +7,16 @@ package com.infomatiq.jsi.detect;
 import com.infomatiq.jsi.Point;
 import com.infomatiq.jsi.Rectangle;
 import com.infomatiq.jsi.SpatialIndex;
+import com.infomatiq.jsi.rtree.KnnTable;
 //import java.text.DateFormat;
 //import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 
 //import java.text.ParseException;
 //import java.util.Date;
@@ -49,7 +55,7 @@ public class LOF {
         ArrayList<Rectangle> knn = mylof.si.nearestN(mylof.p, mylof.minpts);
         // knn[0] is the nearest neighbor
 
-        Double lrdsum = 0.0;
+        double lrdsum = 0.0;
 
         for (int i=0; i<knn.size(); i++) {
             Rectangle nbr = knn.get(i);
@@ -62,6 +68,108 @@ public class LOF {
         return mylof;
     }
 
+    // Local outlier factors of a batch of points, computed in parallel by the
+    // executor. The result is in the order of points. si must not change
+    // until this returns, so pass a snapshot of the tree if another thread
+    // may change it.
+    public static ArrayList<LOF> scoreBatch(final List<Point> points,
+            final int k,
+            final SpatialIndex si,
+            Executor executor) {
+
+        final LOF[] lofs = new LOF[points.size()];
+        final CountDownLatch done = new CountDownLatch(points.size());
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (int i=0; i<points.size(); i++) {
+            final int index = i;
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        lofs[index] = lof(points.get(index), k, null, si);
+                    } catch (RuntimeException | Error e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        try {
+            done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scoring a batch", ex);
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Scoring a batch failed", failure.get());
+        }
+
+        ArrayList<LOF> result = new ArrayList<LOF>(lofs.length);
+        for (LOF l : lofs) {
+            result.add(l);
+        }
+        return result;
+    }
+
+    // Whether adding or deleting any of rects could change the factor of
+    // this LOF. The factor only depends on the knn lists cached in knns: the
+    // test point's, its neighbors' and theirs in turn. A list can only change
+    // if a point is added or deleted no further from its owner than the
+    // k-distance. Ties count as a change, so the test errs on the safe side.
+    public boolean dependsOn(List<Rectangle> rects) {
+        if (rects.isEmpty()) {
+            return false;
+        }
+        for (Map.Entry<Rectangle, ArrayList<Rectangle>> e : knns.entrySet()) {
+            Point q = e.getKey().copys();
+            ArrayList<Rectangle> knn = e.getValue();
+            double kd = q.distance(knn.get(knn.size() - 1).copys());
+            for (Rectangle r : rects) {
+                if (q.distance(r.copys()) <= kd) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Local outlier factors of all the entries of a tree at once, from the
+    // knn lists of all of them, as found by RTree.allKnn(). The result is in
+    // the order of the entries in knn. This gives the same factors as
+    // calling lof() for each entry, without a query per point.
+    public static double[] lof(KnnTable knn) {
+        int n = knn.size();
+
+        // k-distance of each entry: the distance to its furthest neighbor
+        double[] kd = new double[n];
+        for (int i=0; i<n; i++) {
+            kd[i] = knn.kDistance(i);
+        }
+
+        // local reachability density of each entry
+        double[] lrd = new double[n];
+        for (int i=0; i<n; i++) {
+            double rdsum = 0.0;
+            for (int j=0; j<knn.count(i); j++) {
+                // reachability distance, the larger of the distance to the
+                // neighbor and the k-distance of the neighbor
+                rdsum = rdsum + Math.max(knn.distance(i, j), kd[knn.neighbour(i, j)]);
+            }
+            lrd[i] = knn.count(i) / rdsum;
+        }
+
+        double[] factor = new double[n];
+        for (int i=0; i<n; i++) {
+            double lrdsum = 0.0;
+            for (int j=0; j<knn.count(i); j++) {
+                lrdsum = lrdsum + lrd[knn.neighbour(i, j)];
+            }
+            factor[i] = lrdsum / lrd[i] / knn.count(i);
+        }
+        return factor;
+    }
+
     // If a testpoint is said to be an outlier by lof(), then use reasoning()
     // to identify which dimension does the most contribution to this
     // anomaly. reasoning() return an ArrayList, in which each element represent
@@ -73,7 +181,7 @@ public class LOF {
             this.curdim=j;
 
             ArrayList<Rectangle> knn = knns.get(rp);
-            Double lrdsum = 0.0;
+            double lrdsum = 0.0;
 
             for (int i = 0; i < knn.size(); i++) {
                 Rectangle nbr = knn.get(i);
@@ -96,7 +204,7 @@ public class LOF {
     }
 
     // Local reachability density
-    private Double lrd(Rectangle r) {
+    private double lrd(Rectangle r) {
 
         // The nearestN here may return more than k point, if some furthest 
         // points have the same distance to p. knn.get(knn.size()-1) is the furthest
@@ -108,25 +216,25 @@ public class LOF {
             knns.put(r, knn);
         }
 
-        Double rdsum = 0.0;
+        double rdsum = 0.0;
         for (int i=0; i<knn.size(); i++) {
             Rectangle nbr = knn.get(i);
             // the sum of reachability distance
             rdsum = rdsum + rd(r, nbr);
         }
-        Double lrd = knn.size() / rdsum;
+        double lrd = knn.size() / rdsum;
         return lrd;
     }
 
     // Reachability distance
-    private Double rd(Rectangle r,
+    private double rd(Rectangle r,
             Rectangle nbr) {
         Point nbp = nbr.copys();
         Point p = r.copys();
         // distance from p to its neighbor
-        Double dnp = nbp.distance(p);
+        double dnp = nbp.distance(p);
         // k-distance of the neighbor of point p
-        Double kd = kd(nbr);
+        double kd = kd(nbr);
         // always return the larger one
         if (dnp > kd) {
             if (REASONING == true) {
@@ -140,7 +248,7 @@ public class LOF {
     }
 
     // k-distance 
-    private Double kd(Rectangle r) {
+    private double kd(Rectangle r) {
         // the last element in _knn must be the furthest kth rectangle
         Point p = r.copys();
         ArrayList<Rectangle> knn = knns.get(r);
@@ -150,7 +258,7 @@ public class LOF {
             knns.put(r, knn);
         }
         Point knbr = knn.get(knn.size() - 1).copys();
-        Double dis = p.distance(knbr);
+        double dis = p.distance(knbr);
         if (REASONING == true) {
             dis = Math.sqrt(Math.pow(dis, 2) - Math.pow(p.get(curdim) - knbr.get(curdim), 2));
             //dis = Math.abs(p.get(curdim) - knbr.get(curdim));
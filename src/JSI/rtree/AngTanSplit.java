@@ -0,0 +1,137 @@
+//   AngTanSplit.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi.rtree;
+
+import com.infomatiq.jsi.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * <p>The linear split of C. H. Ang and T. C. Tan, "New linear node splitting
+ * algorithm for R-trees" (1997). Along every axis, each entry goes to the
+ * group of the side of the node it is closer to. The axis giving the most
+ * even distribution is used, resolving ties by the least overlap and then the
+ * least total area of the two groups. Like LinearSplit it needs no pairwise
+ * comparison of the entries, but it tends to give groups with less
+ * overlap.</p>
+ */
+public class AngTanSplit implements SplitStrategy {
+
+    public void split(Node n, Node rect, Node newNode, int maxNodeEntries, int minNodeEntries) {
+        assert n.size() == maxNodeEntries : "Error:Not enough entires before spliting a Node!";
+
+        ArrayList<Node> entries = n.copyEntry();
+        entries.add(rect);
+        Rectangle bounds = new Rectangle();
+        for (Node e : entries) {
+            bounds.enlarge(e);
+        }
+
+        // Distribute the entries along each axis, and keep the best axis
+        int splitAxis = -1;
+        int bestLarger = Integer.MAX_VALUE;
+        double bestOverlap = Double.MAX_VALUE;
+        double bestArea = Double.MAX_VALUE;
+        for (int axis = 0; axis < bounds.getdim(); axis++) {
+            Rectangle low = new Rectangle();
+            Rectangle high = new Rectangle();
+            int lowCount = 0;
+            for (Node e : entries) {
+                if (isLow(e, bounds, axis)) {
+                    low.enlarge(e);
+                    lowCount++;
+                } else {
+                    high.enlarge(e);
+                }
+            }
+            int larger = Math.max(lowCount, entries.size() - lowCount);
+            if (larger > bestLarger) {
+                continue;
+            }
+            // one of the groups may be empty
+            double overlap = 0.0;
+            double area = low.getdim() == 0 ? high.area() : low.area();
+            if (low.getdim() > 0 && high.getdim() > 0) {
+                overlap = low.overlap(high);
+                area = low.area() + high.area();
+            }
+            if (larger < bestLarger || overlap < bestOverlap
+                    || (overlap == bestOverlap && area < bestArea)) {
+                splitAxis = axis;
+                bestLarger = larger;
+                bestOverlap = overlap;
+                bestArea = area;
+            }
+        }
+
+        ArrayList<Node> low = new ArrayList<Node>();
+        ArrayList<Node> high = new ArrayList<Node>();
+        for (Node e : entries) {
+            if (isLow(e, bounds, splitAxis)) {
+                low.add(e);
+            } else {
+                high.add(e);
+            }
+        }
+
+        // If one group is too small, move to it the entries of the other
+        // group which lie closest to its side along the split axis
+        if (low.size() < minNodeEntries || high.size() < minNodeEntries) {
+            Comparator<Node> byCentre = new CentreComparator(splitAxis);
+            Collections.sort(low, byCentre);
+            Collections.sort(high, byCentre);
+            while (low.size() < minNodeEntries) {
+                low.add(high.remove(0));
+            }
+            while (high.size() < minNodeEntries) {
+                high.add(0, low.remove(low.size() - 1));
+            }
+        }
+
+        n.clearEntry();
+        for (Node e : low) {
+            n.addEntry(e);
+        }
+        for (Node e : high) {
+            newNode.addEntry(e);
+        }
+        assert n.size() + newNode.size() == maxNodeEntries + 1 : "Error:Node lost while spliting a Node!";
+    }
+
+    // whether e is closer to the lower than to the upper side of bounds
+    // along axis
+    private static boolean isLow(Node e, Rectangle bounds, int axis) {
+        return e.getMin(axis) - bounds.getMin(axis) < bounds.getMax(axis) - e.getMax(axis);
+    }
+
+    /**
+     * Orders nodes by the centre of their MBR along one axis.
+     */
+    private static class CentreComparator implements Comparator<Node> {
+
+        private final int axis;
+
+        CentreComparator(int axis) {
+            this.axis = axis;
+        }
+
+        public int compare(Node n1, Node n2) {
+            return Double.compare(n1.getMin(axis) + n1.getMax(axis), n2.getMin(axis) + n2.getMax(axis));
+        }
+    }
+}
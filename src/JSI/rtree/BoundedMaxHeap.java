@@ -0,0 +1,174 @@
+//   BoundedMaxHeap.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi.rtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * <p>Used by RTree to collect the k nearest neighbours of a query. A binary
+ * max-heap of at most k values keyed by distance, so that the furthest of
+ * the k values found so far is at the top. Values at the same distance as
+ * the k-th are kept aside, so that all of them are returned when there is a
+ * tie. The keys are held in a double array, and the heap can be reused for
+ * another query after reset(), so a query allocates nothing.</p>
+ */
+class BoundedMaxHeap<T> {
+
+    private int k;
+    private double[] keys;
+    private Object[] values;
+    private int size = 0;
+    // values with the same key as the top of the full heap
+    private Object[] ties;
+    private int tieCount = 0;
+
+    BoundedMaxHeap(int k) {
+        keys = new double[0];
+        values = new Object[0];
+        ties = new Object[0];
+        reset(k);
+    }
+
+    /**
+     * Empty the heap, and set the number of values to keep.
+     */
+    void reset(int k) {
+        assert k > 0;
+        Arrays.fill(values, 0, size, null);
+        Arrays.fill(ties, 0, tieCount, null);
+        if (keys.length < k) {
+            keys = new double[k];
+            values = new Object[k];
+        }
+        this.k = k;
+        size = 0;
+        tieCount = 0;
+    }
+
+    /**
+     * Returns the number of values held, including ties.
+     */
+    int size() {
+        return size + tieCount;
+    }
+
+    /**
+     * Returns the key a value must not exceed to be kept: the k-th smallest
+     * key so far once k values are held, and infinity before.
+     */
+    double threshold() {
+        return size < k ? Double.POSITIVE_INFINITY : keys[0];
+    }
+
+    /**
+     * Offer a value. It is kept if fewer than k values are held, or if its
+     * key is no greater than the k-th smallest key so far.
+     */
+    void insert(T value, double key) {
+        if (size < k) {
+            promote(size++, value, key);
+            return;
+        }
+        double top = keys[0];
+        if (key > top) {
+            return;
+        }
+        if (key == top) {
+            addTie(value);
+            return;
+        }
+        // the top is replaced. If the new top has the same key, the old one
+        // becomes a tie; otherwise the old top and its ties are all dropped
+        Object evicted = values[0];
+        demote(0, value, key);
+        if (keys[0] == top) {
+            addTie(evicted);
+        } else {
+            Arrays.fill(ties, 0, tieCount, null);
+            tieCount = 0;
+        }
+    }
+
+    /**
+     * Empty the heap into result, in order of increasing key.
+     */
+    @SuppressWarnings("unchecked")
+    void drainAscending(ArrayList<T> result) {
+        int start = result.size();
+        for (int i = 0; i < size + tieCount; i++) {
+            result.add(null);
+        }
+        // the ties are the furthest values
+        for (int i = tieCount - 1; i >= 0; i--) {
+            result.set(start + size + i, (T) ties[i]);
+            ties[i] = null;
+        }
+        tieCount = 0;
+        while (size > 0) {
+            result.set(start + size - 1, (T) values[0]);
+            size--;
+            if (size > 0) {
+                demote(0, values[size], keys[size]);
+            }
+            values[size] = null;
+        }
+    }
+
+    private void addTie(Object value) {
+        if (tieCount == ties.length) {
+            ties = Arrays.copyOf(ties, Math.max(4, tieCount * 2));
+        }
+        ties[tieCount++] = value;
+    }
+
+    // Consider the index to be a "hole"; copy each parent down into the hole
+    // until the key fits
+    private void promote(int index, Object value, double key) {
+        while (index > 0) {
+            int parentIndex = (index - 1) >>> 1;
+            if (keys[parentIndex] >= key) {
+                break;
+            }
+            keys[index] = keys[parentIndex];
+            values[index] = values[parentIndex];
+            index = parentIndex;
+        }
+        keys[index] = key;
+        values[index] = value;
+    }
+
+    // Consider the index to be a "hole"; copy the larger child up into the
+    // hole until the key fits
+    private void demote(int index, Object value, double key) {
+        int childIndex = (index * 2) + 1;
+        while (childIndex < size) {
+            if (childIndex + 1 < size && keys[childIndex + 1] > keys[childIndex]) {
+                childIndex++;
+            }
+            if (keys[childIndex] <= key) {
+                break;
+            }
+            keys[index] = keys[childIndex];
+            values[index] = values[childIndex];
+            index = childIndex;
+            childIndex = (index * 2) + 1;
+        }
+        keys[index] = key;
+        values[index] = value;
+    }
+}
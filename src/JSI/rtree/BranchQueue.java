@@ -0,0 +1,114 @@
+//   BranchQueue.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi.rtree;
+
+import java.util.Arrays;
+
+/**
+ * <p>Used by RTree. A binary min-heap of nodes keyed by a distance, kept in
+ * two parallel arrays so that no object is created per entry. This is the
+ * priority queue of the best-first nearest neighbour search.</p>
+ */
+class BranchQueue {
+
+    private double[] keys;
+    private Node[] nodes;
+    private int size = 0;
+
+    BranchQueue(int capacity) {
+        keys = new double[Math.max(capacity, 1)];
+        nodes = new Node[Math.max(capacity, 1)];
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(nodes, 0, size, null);
+        size = 0;
+    }
+
+    // to insert a node, append it to the arrays, then reheapify by
+    // promoting it to the correct place
+    void push(Node node, double key) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            nodes = Arrays.copyOf(nodes, size * 2);
+        }
+        int index = size++;
+        // Consider the index to be a "hole"; copy each parent down into the
+        // hole until the new key fits
+        while (index > 0) {
+            int parentIndex = (index - 1) >>> 1;
+            if (keys[parentIndex] <= key) {
+                break;
+            }
+            keys[index] = keys[parentIndex];
+            nodes[index] = nodes[parentIndex];
+            index = parentIndex;
+        }
+        keys[index] = key;
+        nodes[index] = node;
+    }
+
+    // the smallest key in the queue
+    double peekKey() {
+        assert size > 0;
+        return keys[0];
+    }
+
+    // the node with the smallest key
+    Node peek() {
+        assert size > 0;
+        return nodes[0];
+    }
+
+    // remove and return the node with the smallest key
+    Node pop() {
+        assert size > 0;
+        Node result = nodes[0];
+        size--;
+        double key = keys[size];
+        Node node = nodes[size];
+        nodes[size] = null;
+        if (size > 0) {
+            // move the hole at the root down until the last entry fits
+            int index = 0;
+            int childIndex = 1;
+            while (childIndex < size) {
+                if (childIndex + 1 < size && keys[childIndex + 1] < keys[childIndex]) {
+                    childIndex++;
+                }
+                if (keys[childIndex] >= key) {
+                    break;
+                }
+                keys[index] = keys[childIndex];
+                nodes[index] = nodes[childIndex];
+                index = childIndex;
+                childIndex = (index * 2) + 1;
+            }
+            keys[index] = key;
+            nodes[index] = node;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,364 @@
+//   BufferPool.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi.rtree;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * <p>A fixed number of page sized frames caching the pages of a file, as
+ * used by PagedRTree. The memory used is set by the number of frames,
+ * whatever the size of the file.</p>
+ *
+ * <p>A page is pinned while it is in use, and cannot be evicted until it is
+ * unpinned as many times. A page unpinned as dirty is written back to the
+ * file when it is evicted, or by flush().</p>
+ *
+ * <p>Pages are evicted by the CLOCK algorithm, with a reference count in
+ * place of a reference bit (generalized CLOCK): each use of a page adds
+ * one to its count, up to MAX_USAGE, and each pass of the clock hand takes
+ * one off, evicting the first unpinned page found at zero. A page used by
+ * most queries, such as the root and the nodes near it, keeps a high count
+ * and so stays resident, while a burst of pages used once, such as the
+ * leaves of a large scan, only displace each other.</p>
+ *
+ * <p>All the methods may be called from any number of threads. The pool is
+ * only locked to find a page or to reserve a frame for it, and pages are
+ * read and written with the pool unlocked. While a page is being read into
+ * its frame, the frame is marked as loading, and other threads pinning the
+ * same page wait for that read alone. Pins of other pages go ahead
+ * meanwhile. A dirty page is written back before its frame is reused, and
+ * stays in the pool until it has been written, so it is never read back
+ * stale.</p>
+ */
+public class BufferPool {
+
+    // the highest reference count of a page, so a page unused for
+    // MAX_USAGE sweeps of the clock can be evicted however often it was
+    // used before
+    private static final int MAX_USAGE = 8;
+
+    private final FileChannel channel;
+    private final int pageSize;
+    private final ByteBuffer[] frames;
+    // page held by each frame, or -1
+    private final int[] pages;
+    private final int[] pins;
+    private final int[] usage;
+    private final boolean[] dirty;
+    // the read in progress into each frame, or null
+    private final Load[] loads;
+    private final HashMap<Integer, Integer> frameOf = new HashMap<Integer, Integer>();
+    private int hand = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long writes = 0;
+
+    /**
+     * @param channel The file the pages are read from and written to.
+     * @param pageSize The size of a page in bytes. Page n starts at byte
+     * n * pageSize of the file.
+     * @param capacity The number of frames.
+     */
+    public BufferPool(FileChannel channel, int pageSize, int capacity) {
+        if (pageSize < 1 || capacity < 1) {
+            throw new IllegalArgumentException("pageSize and capacity must be positive");
+        }
+        if ((long) pageSize * capacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A buffer pool is limited to 2GB");
+        }
+        this.channel = channel;
+        this.pageSize = pageSize;
+        // one block of memory for all the frames, outside the heap
+        ByteBuffer memory = ByteBuffer.allocateDirect(pageSize * capacity);
+        frames = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++) {
+            memory.limit((i + 1) * pageSize).position(i * pageSize);
+            frames[i] = memory.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        pages = new int[capacity];
+        Arrays.fill(pages, -1);
+        pins = new int[capacity];
+        usage = new int[capacity];
+        dirty = new boolean[capacity];
+        loads = new Load[capacity];
+    }
+
+    /**
+     * Pins a page, reading it if it is not in the pool. The page starts at
+     * index 0 of the buffer returned, which is little-endian. It must be
+     * read and written with absolute gets and puts only, as the buffer is
+     * shared by all the users of the page.
+     *
+     * @throws IOException if the page cannot be read, or the page it
+     * replaces cannot be written back.
+     * @throws IllegalStateException if every frame is pinned.
+     */
+    public ByteBuffer pin(int page) throws IOException {
+        while (true) {
+            int frame;
+            int evicted = -1;
+            boolean miss = false;
+            Load load;
+            synchronized (this) {
+                Integer found = frameOf.get(page);
+                if (found != null) {
+                    hits++;
+                    frame = found;
+                    load = loads[frame];
+                    usage[frame] = Math.min(usage[frame] + 1, MAX_USAGE);
+                } else {
+                    frame = victim();
+                    if (pages[frame] >= 0 && dirty[frame]) {
+                        // write the page back first, and keep it pinned
+                        // meanwhile so that it is neither evicted nor read
+                        // from the file before it is written
+                        evicted = pages[frame];
+                        dirty[frame] = false;
+                        load = null;
+                    } else {
+                        misses++;
+                        miss = true;
+                        if (pages[frame] >= 0) {
+                            frameOf.remove(pages[frame]);
+                            evictions++;
+                        }
+                        pages[frame] = page;
+                        usage[frame] = 1;
+                        load = new Load();
+                        loads[frame] = load;
+                        frameOf.put(page, frame);
+                    }
+                }
+                pins[frame]++;
+            }
+
+            if (evicted >= 0) {
+                writeBack(frame, evicted);
+                // the frame is clean now, but another thread may have
+                // taken it or pinned the page meanwhile, so start again
+                continue;
+            }
+            if (miss) {
+                load(frame, page, load);
+            } else if (load != null) {
+                try {
+                    load.await();
+                } catch (IOException e) {
+                    synchronized (this) {
+                        pins[frame]--;
+                    }
+                    throw e;
+                }
+            }
+            return frames[frame];
+        }
+    }
+
+    // Used by pin(). Reads page into frame, which has been reserved for it,
+    // and then lets the threads waiting for it go on. If the read fails, the
+    // page is taken out of the pool again.
+    private void load(int frame, int page, Load load) throws IOException {
+        IOException failure = null;
+        boolean loaded = false;
+        try {
+            read(frame, page);
+            loaded = true;
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } finally {
+            synchronized (this) {
+                loads[frame] = null;
+                if (!loaded) {
+                    frameOf.remove(page);
+                    pages[frame] = -1;
+                    pins[frame]--;
+                }
+            }
+            if (!loaded && failure == null) {
+                failure = new IOException("Page " + page + " could not be read");
+            }
+            load.finish(failure);
+        }
+    }
+
+    // Used by pin() and flush(). Writes back the page in frame, which the
+    // caller has pinned and marked clean, and unpins it. If the write fails,
+    // the page is marked dirty again.
+    private void writeBack(int frame, int page) throws IOException {
+        boolean written = false;
+        try {
+            write(frame, page);
+            written = true;
+        } finally {
+            synchronized (this) {
+                pins[frame]--;
+                if (written) {
+                    writes++;
+                } else {
+                    dirty[frame] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Unpins a page pinned by pin().
+     *
+     * @param dirty true if the page was changed, so that it is written back.
+     */
+    public synchronized void unpin(int page, boolean dirty) {
+        Integer frame = frameOf.get(page);
+        if (frame == null || pins[frame] == 0) {
+            throw new IllegalStateException("Page " + page + " is not pinned");
+        }
+        pins[frame]--;
+        this.dirty[frame] |= dirty;
+    }
+
+    /**
+     * Writes back every dirty page.
+     */
+    public void flush() throws IOException {
+        for (int frame = 0; frame < frames.length; frame++) {
+            int page;
+            synchronized (this) {
+                if (pages[frame] < 0 || !dirty[frame]) {
+                    continue;
+                }
+                page = pages[frame];
+                pins[frame]++;
+                dirty[frame] = false;
+            }
+            writeBack(frame, page);
+        }
+    }
+
+    // Used by pin(). Sweep the clock hand round to the first unpinned frame
+    // with no uses left, taking a use off each unpinned frame passed over.
+    private int victim() {
+        // each sweep takes one use off every unpinned frame, so after
+        // MAX_USAGE + 1 sweeps with nothing found, every frame is pinned
+        for (int i = 0; i < frames.length * (MAX_USAGE + 1); i++) {
+            int frame = hand;
+            hand = (hand + 1) % frames.length;
+            if (pins[frame] > 0) {
+                continue;
+            }
+            if (pages[frame] < 0 || usage[frame] == 0) {
+                return frame;
+            }
+            usage[frame]--;
+        }
+        throw new IllegalStateException("All " + frames.length + " pages of the buffer pool are pinned");
+    }
+
+    private void read(int frame, int page) throws IOException {
+        ByteBuffer buffer = frames[frame].duplicate();
+        long position = (long) page * pageSize;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException("Page " + page + " is beyond the end of the file");
+            }
+        }
+    }
+
+    private void write(int frame, int page) throws IOException {
+        ByteBuffer buffer = frames[frame].duplicate();
+        long position = (long) page * pageSize;
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * A read of a page into a frame, which the other threads pinning the
+     * page wait for.
+     */
+    private static class Load {
+
+        private boolean finished = false;
+        private IOException failure = null;
+
+        synchronized void finish(IOException failure) {
+            this.failure = failure;
+            finished = true;
+            notifyAll();
+        }
+
+        synchronized void await() throws IOException {
+            boolean interrupted = false;
+            while (!finished) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw new IOException(failure.getMessage(), failure);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of frames.
+     */
+    public int getCapacity() {
+        return frames.length;
+    }
+
+    /**
+     * Returns the number of pins of a page already in the pool.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of pins which had to read the page.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of pages evicted to make room for others.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of dirty pages written back.
+     */
+    public synchronized long getWrites() {
+        return writes;
+    }
+}
@@ -0,0 +1,408 @@
+//   ConcurrentRTree.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi.rtree;
+
+import com.infomatiq.jsi.Entry;
+import com.infomatiq.jsi.NeighborIterator;
+import com.infomatiq.jsi.Point;
+import com.infomatiq.jsi.Rectangle;
+import com.infomatiq.jsi.SpatialIndex;
+import com.infomatiq.jsi.Visitor;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>A thread safe RTree. All the methods of SpatialIndex may be called from
+ * any number of threads at once. Queries hold a shared read lock, so any
+ * number of them run in parallel, while changes to the tree hold the write
+ * lock and so run one at a time, with no query in progress.</p>
+ *
+ * <p>The queries of RTree keep their scratch space on the stack or in thread
+ * local storage, so they can share the tree safely as long as no change is
+ * made while they run. The rectangles they return are the entries of the
+ * tree, which are never altered once added, so they remain valid after the
+ * lock is released.</p>
+ *
+ * <p>Visitors are called with the read lock held, so a visitor must not
+ * change this index, or it will wait for ever.</p>
+ *
+ * <p>Readers which need a stable view of the index over many queries, with
+ * no contention with the writer at all, can take a snapshot().</p>
+ */
+public class ConcurrentRTree implements SpatialIndex {
+
+    private final RTree tree;
+    private final Lock readLock;
+    private final Lock writeLock;
+    // number of changes made to the tree, so that iterators can detect them
+    private volatile int modCount = 0;
+
+    public ConcurrentRTree() {
+        this(new RTree());
+    }
+
+    /**
+     * Wraps an existing tree. The tree must not be used directly once it has
+     * been wrapped.
+     */
+    public ConcurrentRTree(RTree tree) {
+        this.tree = tree;
+        ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        readLock = lock.readLock();
+        writeLock = lock.writeLock();
+    }
+
+    /**
+     * @see RTree#init(Properties)
+     */
+    public void init(Properties props) {
+        writeLock.lock();
+        try {
+            tree.init(props);
+            modCount++;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @see RTree#bulkLoad(Collection)
+     */
+    public ArrayList<Entry> bulkLoad(Collection<Rectangle> rects) {
+        writeLock.lock();
+        try {
+            modCount++;
+            return tree.bulkLoad(rects);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#add(Rectangle)
+     */
+    public Entry add(Rectangle r) {
+        writeLock.lock();
+        try {
+            modCount++;
+            return tree.add(r);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#delete(Rectangle)
+     */
+    public boolean delete(Rectangle r) {
+        writeLock.lock();
+        try {
+            modCount++;
+            return tree.delete(r);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#delete(Entry)
+     */
+    public boolean delete(Entry e) {
+        writeLock.lock();
+        try {
+            modCount++;
+            return tree.delete(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes an entry and adds a rectangle in its place as a single change,
+     * so that no query sees the index without either of them. This is the
+     * step of a sliding window over a stream of rectangles.
+     *
+     * @param e The handle of the entry to delete.
+     * @param r The rectangle to add.
+     *
+     * @return the handle of the new entry, or null if e was not an entry of
+     * this index, in which case nothing is changed.
+     */
+    public Entry replace(Entry e, Rectangle r) {
+        writeLock.lock();
+        try {
+            modCount++;
+            if (!tree.delete(e)) {
+                return null;
+            }
+            return tree.add(r);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a read only snapshot of the index as it is now. Queries on the
+     * snapshot take no lock at all, and are not held up by later changes to
+     * the index.
+     *
+     * @see RTree#snapshot()
+     */
+    public RTree snapshot() {
+        writeLock.lock();
+        try {
+            return tree.snapshot();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#intersects(Rectangle)
+     */
+    public boolean intersects(Rectangle r) {
+        readLock.lock();
+        try {
+            return tree.intersects(r);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#intersects(Rectangle, Visitor)
+     */
+    public boolean intersects(Rectangle r, Visitor v) {
+        readLock.lock();
+        try {
+            return tree.intersects(r, v);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#withinDistance(Point, double, Visitor)
+     */
+    public boolean withinDistance(Point p, double distance, Visitor v) {
+        readLock.lock();
+        try {
+            return tree.withinDistance(p, distance, v);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#contains(Rectangle)
+     */
+    public ArrayList<Rectangle> contains(Rectangle r) {
+        readLock.lock();
+        try {
+            return tree.contains(r);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#contains(Rectangle, Visitor)
+     */
+    public boolean contains(Rectangle r, Visitor v) {
+        readLock.lock();
+        try {
+            return tree.contains(r, v);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#count(Rectangle)
+     */
+    public int count(Rectangle r) {
+        readLock.lock();
+        try {
+            return tree.count(r);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#size()
+     */
+    public int size() {
+        readLock.lock();
+        try {
+            return tree.size();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of the bounds, as the bounds of the tree itself change
+     * with it.
+     *
+     * @see com.infomatiq.jsi.SpatialIndex#getBounds()
+     */
+    public Rectangle getBounds() {
+        readLock.lock();
+        try {
+            Rectangle bounds = tree.getBounds();
+            return bounds == null ? null : bounds.copy();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public int getdim() {
+        readLock.lock();
+        try {
+            return tree.getdim();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#getVersion()
+     */
+    public String getVersion() {
+        return "Concurrent" + tree.getVersion();
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#nearestN(Point, int)
+     */
+    public ArrayList<Rectangle> nearestN(Point p, int k) {
+        readLock.lock();
+        try {
+            return tree.nearestN(p, k);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#nearestNBatch(List, int)
+     */
+    public ArrayList<ArrayList<Rectangle>> nearestNBatch(List<Point> points, int k) {
+        readLock.lock();
+        try {
+            return tree.nearestNBatch(points, k);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @see RTree#allKnn(int)
+     */
+    public KnnTable allKnn(int k) {
+        readLock.lock();
+        try {
+            return tree.allKnn(k);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator which takes the read lock for each step. If the
+     * index is changed while iterating, the next step throws
+     * ConcurrentModificationException, as the search can no longer go on.
+     *
+     * @see com.infomatiq.jsi.SpatialIndex#nearestIterator(Point)
+     */
+    public NeighborIterator nearestIterator(Point p) {
+        readLock.lock();
+        try {
+            return new LockedIterator(tree.nearestIterator(p), modCount);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Check the consistency of the tree.
+     *
+     * @see RTree#checkConsistency()
+     */
+    public boolean checkConsistency() {
+        readLock.lock();
+        try {
+            return tree.checkConsistency();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Used by nearestIterator().
+     */
+    private class LockedIterator implements NeighborIterator {
+
+        private final NeighborIterator iterator;
+        private final int expectedModCount;
+
+        LockedIterator(NeighborIterator iterator, int expectedModCount) {
+            this.iterator = iterator;
+            this.expectedModCount = expectedModCount;
+        }
+
+        public boolean hasNext() {
+            readLock.lock();
+            try {
+                checkModCount();
+                return iterator.hasNext();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        public Rectangle next() {
+            readLock.lock();
+            try {
+                checkModCount();
+                return iterator.next();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        public double distance() {
+            return iterator.distance();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void checkModCount() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+//   GuttmanSplit.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi.rtree;
+
+import java.util.ArrayList;
+
+/**
+ * <p>The node split of Guttman's original paper. Two seeds are picked to
+ * start the groups, then the remaining entries are assigned one at a time,
+ * each to the group whose covering rectangle has to be enlarged least. The
+ * subclasses differ in how the seeds are picked.</p>
+ */
+abstract class GuttmanSplit implements SplitStrategy {
+
+    /**
+     * Split a node. Algorithm is taken pretty much verbatim from Guttman's
+     * original paper.
+     */
+    public void split(Node n, Node rect, Node newNode, int maxNodeEntries, int minNodeEntries) {
+        // [Pick first entry for each group] Apply algorithm pickSeeds to 
+        // choose two entries to be the first elements of the groups. Assign
+        // each to a group.
+        // The parameter newId stands for the id of the new rectange
+
+        assert n.size() == maxNodeEntries : "Error:Not enough entires before spliting a Node!";
+
+        // for the purposes of picking seeds, take the MBR of the node to include
+        // the new rectangle as well.
+        n.enlarge(rect);
+
+        ArrayList<Node> seed = pickSeeds(n, rect);
+        Node highestLowIndex = seed.get(0);
+        Node lowestHighIndex = seed.get(1);
+
+        ArrayList<Node> tempentries = n.copyEntry();
+        tempentries.add(rect);
+
+        n.clearEntry();
+
+        // highestLowIndex is the seed for the new node.
+        // lowestHighIndex is the seed for the original node. 
+
+        if (highestLowIndex == null) {
+            newNode.addEntry(tempentries.get(tempentries.size()-1));
+            tempentries.remove(tempentries.get(tempentries.size()-1));
+        } else {
+            newNode.addEntry(highestLowIndex);
+            tempentries.remove(highestLowIndex);
+        }
+        if (lowestHighIndex == null) {
+            n.addEntry(tempentries.get(tempentries.size() - 1));
+            tempentries.remove(tempentries.get(tempentries.size() - 1));
+        } else {
+            n.addEntry(lowestHighIndex);
+            tempentries.remove(lowestHighIndex);
+        }
+        
+        assert tempentries.size() == maxNodeEntries + 1 - 2;
+
+        // [Check if done] If all entries have been assigned, stop. If one
+        // group has so few entries that all the rest must be assigned to it in 
+        // order for it to have the minimum number m, assign them and stop. 
+        while (tempentries.size() > 0) {
+            if (maxNodeEntries + 1 - newNode.size() == minNodeEntries) {
+                // assign all remaining entries to original node
+                while (tempentries.size() > 0) {
+                    n.addEntry(tempentries.get(0));
+                    tempentries.remove(0);
+                }
+                break;
+            }
+
+            if (maxNodeEntries + 1 - n.size() == minNodeEntries) {
+                // assign all remaining entries to new node
+                while (tempentries.size() > 0) {
+                    newNode.addEntry(tempentries.get(0));
+                    tempentries.remove(0);
+                }
+                break;
+            }
+
+            // [Select entry to assign] Invoke algorithm pickNext to choose the
+            // next entry to assign. Add it to the group whose covering rectangle 
+            // will have to be enlarged least to accommodate it. Resolve ties
+            // by adding the entry to the group with smaller area, then to the 
+            // the one with fewer entries, then to either. Repeat from S2
+            ArrayList<Node> next = pickNext(n, newNode, tempentries, maxNodeEntries);
+
+            Node nextNode = next.get(0);
+            Node nextEntry = next.get(1);
+            nextNode.addEntry(nextEntry);
+            tempentries.remove(nextEntry);
+
+        }
+        assert n.size() + newNode.size() == maxNodeEntries + 1 : "Error:Node lost while spliting a Node!";
+    }
+
+    /**
+     * Pick the seeds used to split a node. Select two entries to be the first
+     * elements of the groups.
+     *
+     * @param n The node being split, whose MBR already includes rect.
+     * @param rect The entry that caused the overflow.
+     *
+     * @return the seed of the new node and the seed of n, in that order. A
+     * null seed stands for rect.
+     */
+    abstract ArrayList<Node> pickSeeds(Node n, Node rect);
+
+    /**
+     * Pick the next entry to be assigned to a group during a node split.
+     *
+     * [Determine cost of putting each entry in each group] For each entry not
+     * yet in a group, calculate the area increase required in the covering
+     * rectangles of each group
+     */
+    private ArrayList<Node> pickNext(Node n, Node newNode, ArrayList<Node> rect, int maxNodeEntries) {
+        Node nextNode = null; 
+        Node nextEntry = null;
+        double maxDifference = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < rect.size(); i++) {
+
+            double nIncrease = n.enlargementArea(rect.get(i));
+            double newNodeIncrease = newNode.enlargementArea(rect.get(i));
+            double difference = Math.abs(nIncrease - newNodeIncrease);
+            if (difference > maxDifference) {
+                nextEntry = rect.get(i);
+                if (nIncrease < newNodeIncrease) {
+                    nextNode = n;
+                } else if (newNodeIncrease < nIncrease) {
+                    nextNode = newNode;
+                } else if (n.area() < newNode.area()) {
+                    nextNode = n;
+                } else if (newNode.area() > n.area()) {
+                    nextNode = newNode;
+                } else if (newNode.size() < maxNodeEntries / 2) {
+                    nextNode = n;
+                } else {
+                    nextNode = newNode;
+                }
+                maxDifference = difference;
+            }
+        }
+        assert nextNode != null;
+        assert nextEntry != null;
+        ArrayList<Node> next = new ArrayList<Node>();
+        next.add(nextNode);
+        next.add(nextEntry);
+        return next;
+    }
+}
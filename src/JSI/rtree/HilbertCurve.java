@@ -0,0 +1,101 @@
+//   HilbertCurve.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi.rtree;
+
+/**
+ * <p>Used by RTree to order entries along an N dimensional Hilbert curve when
+ * bulk loading. The index of a cell is computed with the transpose algorithm
+ * of J. Skilling, "Programming the Hilbert curve" (2004), and returned as a
+ * big-endian array of longs, so that two indexes can be compared word by
+ * word.</p>
+ */
+class HilbertCurve {
+
+    private HilbertCurve() {
+    }
+
+    /**
+     * Compute the Hilbert index of a cell.
+     *
+     * @param x The coordinates of the cell, each in [0, 2^bits). The array is
+     * overwritten.
+     * @param bits The number of bits of each coordinate, at most 63.
+     *
+     * @return the dim * bits bit index, most significant word first.
+     */
+    static long[] index(long[] x, int bits) {
+        int n = x.length;
+        long m = 1L << (bits - 1);
+
+        // inverse undo
+        for (long q = m; q > 1; q >>= 1) {
+            long p = q - 1;
+            for (int i = 0; i < n; i++) {
+                if ((x[i] & q) != 0) {
+                    // invert
+                    x[0] ^= p;
+                } else {
+                    // exchange
+                    long t = (x[0] ^ x[i]) & p;
+                    x[0] ^= t;
+                    x[i] ^= t;
+                }
+            }
+        }
+
+        // gray encode
+        for (int i = 1; i < n; i++) {
+            x[i] ^= x[i - 1];
+        }
+        long t = 0;
+        for (long q = m; q > 1; q >>= 1) {
+            if ((x[n - 1] & q) != 0) {
+                t ^= q - 1;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            x[i] ^= t;
+        }
+
+        // interleave the transposed coordinates, from the top bit of each
+        // coordinate down to the bottom bit
+        long[] index = new long[(n * bits + 63) / 64];
+        int pos = 0;
+        for (int b = bits - 1; b >= 0; b--) {
+            for (int i = 0; i < n; i++) {
+                if (((x[i] >>> b) & 1) != 0) {
+                    index[pos / 64] |= 1L << (63 - pos % 64);
+                }
+                pos++;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Compare two indexes returned by index().
+     */
+    static int compare(long[] h1, long[] h2) {
+        for (int i = 0; i < h1.length; i++) {
+            if (h1[i] != h2[i]) {
+                // unsigned comparison
+                return (h1[i] + Long.MIN_VALUE) < (h2[i] + Long.MIN_VALUE) ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,93 @@
+//   KnnTable.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi.rtree;
+
+import com.infomatiq.jsi.Rectangle;
+
+/**
+ * <p>The nearest neighbours of every entry of an RTree, as found by
+ * RTree.allKnn(). The entries are numbered from 0 to size() - 1, and the
+ * table is held in compressed sparse row form: the neighbours of entry i are
+ * at positions offsets[i] to offsets[i + 1] - 1 of two flat arrays, one of
+ * entry numbers and one of distances, nearest first. So n lists of k
+ * neighbours take four arrays rather than n lists of k objects, and a
+ * neighbour's own list is found by its number without a lookup.</p>
+ */
+public class KnnTable {
+
+    private final Rectangle[] entries;
+    private final int[] offsets;
+    private final int[] neighbours;
+    private final double[] distances;
+
+    KnnTable(Rectangle[] entries, int[] offsets, int[] neighbours, double[] distances) {
+        assert offsets.length == entries.length + 1;
+        assert neighbours.length >= offsets[entries.length];
+        this.entries = entries;
+        this.offsets = offsets;
+        this.neighbours = neighbours;
+        this.distances = distances;
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    public int size() {
+        return entries.length;
+    }
+
+    /**
+     * Returns entry i, as nearestN() would return it.
+     */
+    public Rectangle get(int i) {
+        return entries[i];
+    }
+
+    /**
+     * Returns the number of neighbours of entry i. This is k, or more if
+     * there are ties for the k-th nearest, or fewer if the tree holds fewer
+     * than k entries.
+     */
+    public int count(int i) {
+        return offsets[i + 1] - offsets[i];
+    }
+
+    /**
+     * Returns the number of the j-th nearest neighbour of entry i. The entry
+     * itself is among its own neighbours, at distance zero.
+     */
+    public int neighbour(int i, int j) {
+        assert j >= 0 && j < count(i);
+        return neighbours[offsets[i] + j];
+    }
+
+    /**
+     * Returns the distance from entry i to its j-th nearest neighbour.
+     */
+    public double distance(int i, int j) {
+        assert j >= 0 && j < count(i);
+        return distances[offsets[i] + j];
+    }
+
+    /**
+     * Returns the distance from entry i to the furthest of its neighbours,
+     * that is its k-distance.
+     */
+    public double kDistance(int i) {
+        return distances[offsets[i + 1] - 1];
+    }
+}
@@ -0,0 +1,141 @@
+//   LinearSplit.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi.rtree;
+
+import com.infomatiq.jsi.Rectangle;
+import java.util.ArrayList;
+
+/**
+ * <p>Guttman's linear split, the default split of RTree. The seeds are the
+ * pair of entries with the greatest normalized separation along any
+ * dimension, which is found in time linear in the number of entries.</p>
+ */
+public class LinearSplit extends GuttmanSplit {
+
+    /**
+     * Pick the seeds used to split a node. Select two entries to be the first
+     * elements of the groups
+     */
+    ArrayList<Node> pickSeeds(Node n, Node rect) {
+        // Find extreme rectangles along all dimension. Along each dimension,
+        // find the entry whose rectangle has the highest low side, and the one 
+        // with the lowest high side. Record the separation.
+        double maxNormalizedSeparation = -1.0; // initialize to -1 so that even overlapping rectangles will be considered for the seeds
+        double normalizedSeparation = -1.0;
+        int highestLowIndex = -1;
+        int lowestHighIndex = -1;
+
+        for (int i=0; i<rect.getdim(); i++) {
+            double tempHighestLow = rect.getMin(i);
+            int tempHighestLowIndex = -1;
+            double tempLowestHigh = rect.getMax(i);
+            int tempLowestHighIndex = -1;
+            double len = n.getWidth(i);
+
+            for (int c = 0; c < n.size(); c++) {
+                double tempLow = n.getEntryMin(c, i);
+                double tempHigh = n.getEntryMax(c, i);
+                if (tempLow >= tempHighestLow) {
+                    tempHighestLow = tempLow;
+                    tempHighestLowIndex = c;
+                }  // ensure that the same index cannot be both lowestHigh and highestLow
+                if (tempHigh <= tempLowestHigh) {
+                    tempLowestHigh = tempHigh;
+                    tempLowestHighIndex = c;
+                }
+
+                // PS2 [Adjust for shape of the rectangle cluster] Normalize the separations
+                // by dividing by the widths of the entire set along the corresponding
+                // dimension
+
+                if (len == 0) {
+                    normalizedSeparation = 1.0;
+                } else {
+                    normalizedSeparation = (tempHighestLow - tempLowestHigh) / len;
+                }
+
+            }
+
+            // PS3 [Select the most extreme pair] Choose the pair with the greatest
+            // normalized separation along any dimension.
+            // Note that if negative it means the rectangles overlapped. However still include
+            // overlapping rectangles if that is the only choice available.
+            if (normalizedSeparation >= maxNormalizedSeparation) {
+                highestLowIndex = tempHighestLowIndex;
+                lowestHighIndex = tempLowestHighIndex;
+                maxNormalizedSeparation = normalizedSeparation;
+            }
+        }
+
+        // At this point it is possible that the new rectangle is both highestLow and lowestHigh.
+        // This can happen if all rectangles in the node overlap the new rectangle.
+        // Resolve this by declaring that the highestLowIndex is the lowest Y and,
+        // the lowestHighIndex is the largest X (but always a different rectangle)
+        if (highestLowIndex == lowestHighIndex) {
+            highestLowIndex = -1;
+            double tempMinY = minCoordinate(rect);
+            lowestHighIndex = 0;
+            double tempMaxX = maxCoordinate(n.get(0));
+
+            for (int c = 1; c < n.size(); c++) {
+                double newmin = minCoordinate(n.get(c));
+                double newmax = maxCoordinate(n.get(c));
+                if (newmin < tempMinY) {
+                    tempMinY = newmin;
+                    highestLowIndex = c;
+                } else if (newmax > tempMaxX) {
+                    tempMaxX = newmax;
+                    lowestHighIndex = c;
+                }
+            }
+        }
+
+        assert highestLowIndex != lowestHighIndex : "splitNode highestLowIndex equals lowestHighIndex!";
+
+        ArrayList<Node> seed = new ArrayList<Node>();
+        if (highestLowIndex != -1) {
+            seed.add(n.get(highestLowIndex));
+        } else {
+            seed.add(null);
+        }
+        if (lowestHighIndex != -1) {
+            seed.add(n.get(lowestHighIndex));
+        } else {
+            seed.add(null);
+        }
+        return seed;
+
+    }
+
+    // smallest lower bound of r over all dimensions
+    private static double minCoordinate(Rectangle r) {
+        double result = Double.POSITIVE_INFINITY;
+        for (int i=0; i<r.getdim(); i++) {
+            result = Math.min(result, r.getMin(i));
+        }
+        return result;
+    }
+
+    // largest upper bound of r over all dimensions
+    private static double maxCoordinate(Rectangle r) {
+        double result = Double.NEGATIVE_INFINITY;
+        for (int i=0; i<r.getdim(); i++) {
+            result = Math.max(result, r.getMax(i));
+        }
+        return result;
+    }
+}
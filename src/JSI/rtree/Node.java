@@ -18,76 +18,160 @@
 //  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package com.infomatiq.jsi.rtree;
 
+import com.infomatiq.jsi.Entry;
 import com.infomatiq.jsi.Rectangle;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * <p>Used by RTree. There are no public methods in this class.</p>
  *
+ * <p>The MBRs of the entries are packed into two flat arrays, laid out one
+ * dimension after another (entryMin[d * capacity + i] is the lower bound of
+ * entry i in dimension d), so that scanning the entries of a node is a linear
+ * pass over memory rather than a walk over the child objects. The packed
+ * copy is kept in step with each child's own MBR as the tree changes.</p>
+ *
  * @author aled.morris@infomatiq.co.uk
  * @version 1.0b8
  */
-public class Node extends Rectangle {
+public class Node extends Rectangle implements Entry {
 
     // It's user's responsibility to keep id as a key to index node
 
     private int level = 0;
     private Node parent = null;
-    private ArrayList<Node> entries = null;
+    // index of this node in the entries of its parent
+    private int slot = -1;
+    private Node[] entries = null;
+    private int count = 0;
+    // packed MBRs of the entries, allocated once the dimension is known
+    private double[] entryMin = null;
+    private double[] entryMax = null;
     private int maxEntries = 0;
     private int minEntries = 0;
     private Rectangle ref = null;
+    // number of leaf entries in the subtree of this node. It is kept up to
+    // date in this node and all its ancestors as entries come and go, so a
+    // query can count a whole subtree without descending into it.
+    private int total = 0;
+    // the generation of the tree in which this node was made. A node of an
+    // earlier generation may be shared with a snapshot, so it is never changed,
+    // except for the parent and slot of its entries; see RTree.snapshot().
+    private int generation = 0;
 
     // This constructor is used when a Rectangle is added into a tree
     Node(Rectangle r) {
         super(r);
         ref = r;
         level = 0;
+        total = 1;
+    }
+
+    // This constructor is used when a tree is read back by RTree.readFrom().
+    // There is no rectangle of the user's to refer to, so the entry refers
+    // to itself.
+    Node(double[] min, double[] max) {
+        super(min, max);
+        ref = this;
+        level = 0;
+        total = 1;
     }
 
-    Node(int level, int maxNodeEntries, int minNodeEntries) {
+    Node(int level, int maxNodeEntries, int minNodeEntries, int generation) {
         super();
 
         this.level = level;
-        entries = new ArrayList<Node>();
+        this.generation = generation;
+        // one spare slot, so that a node may briefly overflow while it is split
+        entries = new Node[maxNodeEntries + 1];
         this.maxEntries = maxNodeEntries;
         this.minEntries = minNodeEntries;
     }
 
+    // This constructor copies a node into a new generation of the tree. The
+    // entries are shared with n, but belong to the copy from now on.
+    Node(Node n, int generation) {
+        super(n);
+        level = n.level;
+        parent = n.parent;
+        slot = n.slot;
+        entries = n.entries.clone();
+        count = n.count;
+        entryMin = n.entryMin == null ? null : n.entryMin.clone();
+        entryMax = n.entryMax == null ? null : n.entryMax.clone();
+        maxEntries = n.maxEntries;
+        minEntries = n.minEntries;
+        total = n.total;
+        this.generation = generation;
+        for (int i=0; i<count; i++) {
+            entries[i].parent = this;
+        }
+    }
+
     public void addEntry(Node n) {
         assert n != null:"Node n == null!";
         assert size() <= maxEntries;
-        enlarge(n);
-        entries.add(n);
+        if (entryMin == null) {
+            entryMin = new double[entries.length * n.getdim()];
+            entryMax = new double[entries.length * n.getdim()];
+        }
+        entries[count] = n;
         n.setParent(this);
+        n.slot = count;
+        count++;
+        addTotal(n.total);
+        pack(n);
+        enlarge(n);
 
     }
 
     public void clearEntry() {
-        for (int i = 0; i < size(); i++) {
-            entries.clear();
-        }
+        addTotal(-total);
+        Arrays.fill(entries, 0, count, null);
+        count = 0;
         super.clear();
     }
 
+    // add delta to the total of this node and of all its ancestors
+    private void addTotal(int delta) {
+        for (Node n = this; n != null; n = n.parent) {
+            n.total += delta;
+        }
+    }
+
+    // copy the MBR of entry n into the packed arrays
+    private void pack(Node n) {
+        int capacity = entries.length;
+        for (int d=0, j=n.slot; d<n.getdim(); d++, j+=capacity) {
+            entryMin[j] = n.getMin(d);
+            entryMax[j] = n.getMax(d);
+        }
+    }
+
     public boolean checkConsistency() {
         // Node self check
         boolean result = true;
         Rectangle r = new Rectangle();
+        int sum = 0;
         if (getLevel() == 0 && size() > 0) {
             System.out.printf("Error: Node %s, level %d, has child!\n", this, getLevel());
             result = false;
         }
-        if (size() == 0 && getLevel() > 0 ) {
+        if (size() == 0 && getLevel() > 0) {
+            // only the root of an empty tree may have no entries
+            if (isRoot()) {
+                return result;
+            }
             System.out.print("Error: Node is empty but node is not level 0\n");
             return false;
         }
         if (getLevel() > 0 && !isRoot()) {
-            if (entries.size() < minEntries) {
+            if (size() < minEntries) {
                 System.out.printf("Error: Node %s, level %d, entry %d has too few children!\n", this, getLevel(), size());
                 result = false;
             }
-            if (entries.size() > maxEntries) {
+            if (size() > maxEntries) {
                 System.out.printf("Error: Node %s, level %d, entry %d has too many children!\n", this, getLevel(), size());
                 result = false;
             }
@@ -98,10 +182,21 @@ public class Node extends Rectangle {
                 System.out.printf("Error: Node %s, level %d, entry %d, its parent incorrent!\n", this, getLevel(), i);
                 result = false;
             }
+            if (get(i).slot != i) {
+                System.out.printf("Error: Node %s, level %d, entry %d, its slot incorrent!\n", this, getLevel(), i);
+                result = false;
+            }
             if (getLevel() - 1 != get(i).getLevel()) {
                 System.out.printf("Error: Node %s, level %d, entry %d, its level incorrent!\n", this, getLevel(), i);
                 result = false;
             }
+            for (int d=0; d<getdim(); d++) {
+                if (getEntryMin(i, d) != get(i).getMin(d) || getEntryMax(i, d) != get(i).getMax(d)) {
+                    System.out.printf("Error: Node %s, level %d, entry %d, its packed MBR incorrent!\n", this, getLevel(), i);
+                    result = false;
+                    break;
+                }
+            }
 
             if (getLevel() > 0) {
                 if (get(i).checkConsistency() == false) {
@@ -109,6 +204,7 @@ public class Node extends Rectangle {
                 }
             }
             r.enlarge(get(i).getMBR());
+            sum += get(i).total;
         }
 
         if (getLevel() > 0) {
@@ -116,6 +212,10 @@ public class Node extends Rectangle {
                 System.out.printf("Error: Node %s, level %d, its MBR incorrent!\n", this, getLevel());
                 result = false;
             }
+            if (total != sum) {
+                System.out.printf("Error: Node %s, level %d, its total incorrent!\n", this, getLevel());
+                result = false;
+            }
         }
 
 
@@ -125,23 +225,52 @@ public class Node extends Rectangle {
     // i is the index of Rectangle array
 
     public void deleteEntry(Node n) {
-        entries.remove(n);
+        int i = n.slot;
+        assert i >= 0 && i < count && entries[i] == n : "Node is not an entry of this node!";
+        int last = count - 1;
+        if (i != last) {
+            Node moved = entries[last];
+            entries[i] = moved;
+            moved.slot = i;
+            int capacity = entries.length;
+            for (int d=0; d<getdim(); d++) {
+                entryMin[d * capacity + i] = entryMin[d * capacity + last];
+                entryMax[d * capacity + i] = entryMax[d * capacity + last];
+            }
+        }
+        entries[last] = null;
+        count--;
+        addTotal(-n.total);
+        n.slot = -1;
+        n.parent = null;
         setMBR();
     }
 
+    // put n in the place of the entry old, which has the same MBR
+    public void replaceEntry(Node old, Node n) {
+        int i = old.slot;
+        assert i >= 0 && i < count && entries[i] == old : "Node is not an entry of this node!";
+        entries[i] = n;
+        n.slot = i;
+        n.parent = this;
+    }
+
     public ArrayList<Node> copyEntry() {
         ArrayList<Node> copy = new ArrayList<Node>();
-        copy.addAll(entries);
+        copy.addAll(Arrays.asList(entries).subList(0, count));
         return copy;
     }
 
+    // Grow the MBR in place to cover n, and only propagate to the parent
+    // when the MBR actually changed.
     public void enlarge(Node n) {
-        Rectangle original = n.getMBR();
-        enlarge(n.getMBR());
-        if (!original.equals(this)) {
-            if (parent != null) {
-                parent.enlarge(this);
-            }
+        if (getdim() > 0 && contains(n)) {
+            return;
+        }
+        super.enlarge(n);
+        if (parent != null) {
+            parent.pack(this);
+            parent.enlarge(this);
         }
     }
 
@@ -178,12 +307,193 @@ public class Node extends Rectangle {
         return parent;
     }
     
+    // number of leaf entries in the subtree of this node; 1 for a leaf entry
+    public int getTotal() {
+        return total;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
     public Rectangle getRef() {
         return ref;
     }
 
     public Node get(int i) {
-        return entries.get(i);
+        assert i >= 0 && i < count;
+        return entries[i];
+    }
+
+    //-------------------------------------------------------------------------
+    // Scans over the packed entry MBRs. These read the coordinates of entry i
+    // in place, without touching the child object itself.
+    //-------------------------------------------------------------------------
+
+    public double getEntryMin(int i, int d) {
+        return entryMin[d * entries.length + i];
+    }
+
+    public double getEntryMax(int i, int d) {
+        return entryMax[d * entries.length + i];
+    }
+
+    public int capacity() {
+        return entries.length;
+    }
+
+    // area of entry i
+    public double entryArea(int i) {
+        int capacity = entries.length;
+        double result = 1.0;
+        for (int d=0, j=i; d<getdim(); d++, j+=capacity) {
+            result *= entryMax[j] - entryMin[j];
+        }
+        return result;
+    }
+
+    // area by which entry i would be enlarged to include r
+    public double entryEnlargement(int i, Rectangle r) {
+        int capacity = entries.length;
+        double area = 1.0;
+        double unionArea = 1.0;
+        for (int d=0, j=i; d<r.getdim(); d++, j+=capacity) {
+            area *= entryMax[j] - entryMin[j];
+            unionArea *= Math.max(entryMax[j], r.getMax(d)) - Math.min(entryMin[j], r.getMin(d));
+        }
+        return unionArea - area;
+    }
+
+    // whether entry i contains r
+    public boolean entryContains(int i, Rectangle r) {
+        int capacity = entries.length;
+        for (int d=0, j=i; d<r.getdim(); d++, j+=capacity) {
+            if (entryMin[j] > r.getMin(d) || entryMax[j] < r.getMax(d)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // increase in the overlap between entry i and the other entries of this
+    // node, if entry i were enlarged to include r. before and after are
+    // scratch space of at least size() elements.
+    public double entryOverlapEnlargement(int i, Rectangle r, double[] before, double[] after) {
+        int capacity = entries.length;
+        Arrays.fill(before, 0, count, 1.0);
+        Arrays.fill(after, 0, count, 1.0);
+        for (int d=0, base=0; d<r.getdim(); d++, base+=capacity) {
+            double iMin = entryMin[base + i];
+            double iMax = entryMax[base + i];
+            double lo = Math.min(iMin, r.getMin(d));
+            double hi = Math.max(iMax, r.getMax(d));
+            for (int k=0; k<count; k++) {
+                double kMin = entryMin[base + k];
+                double kMax = entryMax[base + k];
+                double a = (hi < kMax ? hi : kMax) - (lo > kMin ? lo : kMin);
+                double b = (iMax < kMax ? iMax : kMax) - (iMin > kMin ? iMin : kMin);
+                after[k] *= a > 0.0 ? a : 0.0;
+                before[k] *= b > 0.0 ? b : 0.0;
+            }
+        }
+        // the enlarged entry covers the original one, so the difference is
+        // never negative; entry i itself is excluded
+        double result = 0.0;
+        for (int k=0; k<count; k++) {
+            result += after[k] - before[k];
+        }
+        return result - (after[i] - before[i]);
+    }
+
+    // squared distance between the centre of entry i and the centre of this
+    // node
+    public double entryCentreDistanceSq(int i) {
+        int capacity = entries.length;
+        double result = 0.0;
+        for (int d=0, j=i; d<getdim(); d++, j+=capacity) {
+            double temp = (entryMin[j] + entryMax[j]) - (getMin(d) + getMax(d));
+            result += temp * temp;
+        }
+        return result / 4;
+    }
+
+    //-------------------------------------------------------------------------
+    // Whole-node scans. Each one makes a single pass over the packed arrays,
+    // one dimension at a time, and writes a result for every entry. The inner
+    // loops are branch free and run over contiguous memory, which lets the JIT
+    // compile them to SIMD instructions where the hardware supports it; on
+    // other platforms they simply run as scalar loops.
+    //-------------------------------------------------------------------------
+
+    // squared MINDIST between the point q and every entry, written to
+    // dist[0..size())
+    public void entryMindistSq(double[] q, double[] dist) {
+        int capacity = entries.length;
+        Arrays.fill(dist, 0, count, 0.0);
+        for (int d=0; d<q.length; d++) {
+            double qd = q[d];
+            for (int i=0, j=d*capacity; i<count; i++, j++) {
+                // at most one of the two terms is positive, as min <= max
+                double temp = Math.max(entryMin[j] - qd, 0.0) + Math.max(qd - entryMax[j], 0.0);
+                dist[i] += temp * temp;
+            }
+        }
+    }
+
+    // squared MINDIST between the rectangle r and every entry, written to
+    // dist[0..size())
+    public void entryMindistSq(Rectangle r, double[] dist) {
+        int capacity = entries.length;
+        Arrays.fill(dist, 0, count, 0.0);
+        for (int d=0; d<r.getdim(); d++) {
+            double lo = r.getMin(d);
+            double hi = r.getMax(d);
+            for (int i=0, j=d*capacity; i<count; i++, j++) {
+                double temp = Math.max(entryMin[j] - hi, 0.0) + Math.max(lo - entryMax[j], 0.0);
+                dist[i] += temp * temp;
+            }
+        }
+    }
+
+    // squared MAXDIST, the greatest distance between a point of r and a
+    // point of the entry, for every entry, written to dist[0..size())
+    public void entryMaxdistSq(Rectangle r, double[] dist) {
+        int capacity = entries.length;
+        Arrays.fill(dist, 0, count, 0.0);
+        for (int d=0; d<r.getdim(); d++) {
+            double lo = r.getMin(d);
+            double hi = r.getMax(d);
+            for (int i=0, j=d*capacity; i<count; i++, j++) {
+                double temp = Math.max(entryMax[j] - lo, hi - entryMin[j]);
+                dist[i] += temp * temp;
+            }
+        }
+    }
+
+    // whether each entry intersects r, written to mask[0..size())
+    public void entryIntersects(Rectangle r, boolean[] mask) {
+        int capacity = entries.length;
+        Arrays.fill(mask, 0, count, true);
+        for (int d=0; d<r.getdim(); d++) {
+            double lo = r.getMin(d);
+            double hi = r.getMax(d);
+            for (int i=0, j=d*capacity; i<count; i++, j++) {
+                mask[i] &= (entryMin[j] <= hi) & (entryMax[j] >= lo);
+            }
+        }
+    }
+
+    // whether each entry is contained by r, written to mask[0..size())
+    public void entryContainedBy(Rectangle r, boolean[] mask) {
+        int capacity = entries.length;
+        Arrays.fill(mask, 0, count, true);
+        for (int d=0; d<r.getdim(); d++) {
+            double lo = r.getMin(d);
+            double hi = r.getMax(d);
+            for (int i=0, j=d*capacity; i<count; i++, j++) {
+                mask[i] &= (entryMin[j] >= lo) & (entryMax[j] <= hi);
+            }
+        }
     }
 
     public void setParent(Node newParent) {
@@ -191,20 +501,39 @@ public class Node extends Rectangle {
     }
     
     public int size() {
-        if (entries == null) {
-            return 0;
-        }
-        return entries.size();
+        return count;
     }
 
+    // Recompute the MBR in place from the packed entries, and only propagate
+    // to the parent when the MBR actually changed.
     public void setMBR() {
-        Rectangle original = this.getMBR();
-        super.clear();
-        for (int i=0; i<size(); i++) {
-            enlarge(entries.get(i));
+        boolean changed = false;
+        if (size() == 0) {
+            changed = getdim() > 0;
+            super.clear();
+        } else {
+            if (getdim() != entries[0].getdim()) {
+                super.clear();
+                super.enlarge(entries[0]);
+                changed = true;
+            }
+            int capacity = entries.length;
+            for (int d=0; d<getdim(); d++) {
+                double lo = Double.POSITIVE_INFINITY;
+                double hi = Double.NEGATIVE_INFINITY;
+                for (int j=d*capacity, end=j+count; j<end; j++) {
+                    lo = Math.min(lo, entryMin[j]);
+                    hi = Math.max(hi, entryMax[j]);
+                }
+                if (lo != getMin(d) || hi != getMax(d)) {
+                    setBounds(d, lo, hi);
+                    changed = true;
+                }
+            }
         }
-        if (!original.equals(this)) {
+        if (changed) {
             if (parent != null) {
+                parent.pack(this);
                 parent.setMBR();
             }
         }
@@ -0,0 +1,956 @@
+//   OffHeapRTree.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi.rtree;
+
+import com.infomatiq.jsi.Entry;
+import com.infomatiq.jsi.NeighborIterator;
+import com.infomatiq.jsi.Point;
+import com.infomatiq.jsi.Rectangle;
+import com.infomatiq.jsi.SpatialIndex;
+import com.infomatiq.jsi.Visitor;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * <p>An RTree whose nodes are kept outside the Java heap. Each node is a
+ * fixed size slot of a SlotArena, laid out as PackedNodes describes with the
+ * slot of its parent added, and the nodes refer to one another by slot
+ * number. The searches are those of PackedNodes, shared with PagedRTree.
+ * The entries are numbered too, and a second arena records the leaf and
+ * the position in it of each, so that a handle is only that number.
+ * However many entries are indexed, the garbage collector sees a few
+ * buffer objects per gigabyte, and the heap holds only the rectangles and
+ * handles kept by the caller.</p>
+ *
+ * <p>Insertion is Guttman's, with any of the split strategies of RTree, and
+ * deletion condenses the tree and reinserts the entries of under-full nodes
+ * as RTree does. Slots freed by deletion are reused by later insertions,
+ * which suits a sliding window. The split strategies work on Node objects,
+ * so a split hands them a small Node for each entry of the overflowing
+ * node, along with whatever the strategy allocates itself. This garbage is
+ * made once per split rather than once per insertion, and is accepted so
+ * that every split strategy can be used.</p>
+ *
+ * <p>Unlike RTree, the index keeps no reference to the rectangles added.
+ * The queries return new rectangles with the same coordinates, which are
+ * not the objects that were added, and delete(Rectangle) deletes some entry
+ * with the coordinates of its argument. To delete one particular entry of
+ * several with the same coordinates, keep the handle returned by add() and
+ * pass it to delete(Entry).</p>
+ *
+ * <p>Not thread safe. Any number of threads may query the index at once
+ * while it is not being changed. The memory is allocated in direct buffers,
+ * so it is limited by -XX:MaxDirectMemorySize rather than by the heap, and
+ * is only returned when the index is garbage collected.</p>
+ */
+public class OffHeapRTree implements SpatialIndex {
+
+    private static final String version = "1.0b8";
+    private static final int NONE = -1;
+    // offsets in a node, after the level and the count of PackedNodes
+    private static final int LEVEL = PackedNodes.LEVEL;
+    private static final int COUNT = PackedNodes.COUNT;
+    private static final int PARENT = 8;
+    private static final int SLOT = 12;
+    private static final int CHILDREN = 16;
+    // offsets in an entry: the leaf holding it and its position there. The
+    // stamp is advanced when the entry is deleted, so that a handle to it no
+    // longer matches when the slot is reused.
+    private static final int LEAF = 0;
+    private static final int INDEX = 4;
+    private static final int STAMP = 8;
+    private static final int ENTRY_SIZE = 12;
+
+    private final int dim;
+    private final int maxNodeEntries;
+    private final int minNodeEntries;
+    // a node has room for one more entry than maxNodeEntries, so that it
+    // holds all its entries until it is split
+    private final int capacity;
+    private final String bulkLoadMethod;
+    private SplitStrategy splitStrategy;
+    // the layout of the nodes, and the searches
+    private final PackedNodes nodes;
+    // offsets in a node
+    private final int totals;
+    private final int mins;
+    private final int maxs;
+    private final SlotArena arena;
+    private final SlotArena entries;
+    private int root;
+    private int size = 0;
+    // the MBR of the entry being added, deleted or reinserted
+    private final double[] entryMin;
+    private final double[] entryMax;
+    // the children and totals of the entries of the node being split
+    private final int[] splitChild;
+    private final int[] splitTotal;
+    // the stand-ins for the entries of the node being split, and the groups
+    // the split strategy divides them between
+    private final Node[] standIns;
+    private final Node group;
+    private final Node newGroup;
+
+    /**
+     * Creates an empty index of rectangles of the given dimension, with at
+     * most 50 and at least 20 entries per node, as RTree.
+     */
+    public OffHeapRTree(int dim) {
+        this(dim, null);
+    }
+
+    /**
+     * Creates an empty index of rectangles of the given dimension. As in
+     * RTree.init(), a minNodeEntries which is not between 1 and
+     * maxNodeEntries / 2 is taken to be maxNodeEntries / 2.
+     */
+    public OffHeapRTree(int dim, int maxNodeEntries, int minNodeEntries) {
+        this(dim, maxNodeEntries, minNodeEntries, new LinearSplit(), RTree.BULK_LOAD_STR);
+    }
+
+    /**
+     * Creates an empty index of rectangles of the given dimension, with the
+     * MaxNodeEntries, MinNodeEntries, SplitStrategy and BulkLoadMethod
+     * properties of RTree.init(). The node sizes default to 50 and 20.
+     *
+     * @throws IllegalArgumentException if a property has an unknown value,
+     * or if InsertionMethod is not Guttman, as the forced reinsertion of the
+     * R*-tree is not supported.
+     */
+    public OffHeapRTree(int dim, Properties props) {
+        this(dim, intProperty(props, "MaxNodeEntries", 50), intProperty(props, "MinNodeEntries", 20),
+                splitStrategy(props), bulkLoadMethod(props));
+    }
+
+    private OffHeapRTree(int dim, int maxNodeEntries, int minNodeEntries,
+            SplitStrategy splitStrategy, String bulkLoadMethod) {
+        if (dim < 1) {
+            throw new IllegalArgumentException("Dimension must be positive");
+        }
+        if (maxNodeEntries < 2) {
+            throw new IllegalArgumentException("MaxNodeEntries must be at least 2");
+        }
+        if (minNodeEntries < 1 || minNodeEntries > maxNodeEntries / 2) {
+            minNodeEntries = maxNodeEntries / 2;
+        }
+        this.dim = dim;
+        this.maxNodeEntries = maxNodeEntries;
+        this.minNodeEntries = minNodeEntries;
+        this.splitStrategy = splitStrategy;
+        this.bulkLoadMethod = bulkLoadMethod;
+        capacity = maxNodeEntries + 1;
+        nodes = new PackedNodes(dim, capacity, CHILDREN) {
+            ByteBuffer pin(int n) {
+                return arena.buffer(n);
+            }
+
+            int base(int n) {
+                return arena.offset(n);
+            }
+
+            void unpin(int n) {
+            }
+        };
+        arena = new SlotArena(nodes.nodeBytes());
+        totals = nodes.totals;
+        mins = nodes.mins;
+        maxs = nodes.maxs;
+        entries = new SlotArena(ENTRY_SIZE);
+        entryMin = new double[dim];
+        entryMax = new double[dim];
+        splitChild = new int[capacity];
+        splitTotal = new int[capacity];
+        standIns = new Node[capacity];
+        // the split strategies only look at the rectangles of the groups, so
+        // their level does not matter
+        group = new Node(1, maxNodeEntries, minNodeEntries, 0);
+        newGroup = new Node(1, maxNodeEntries, minNodeEntries, 0);
+        root = newNode(1);
+    }
+
+    private static int intProperty(Properties props, String key, int defaultValue) {
+        if (props == null) {
+            return defaultValue;
+        }
+        return Integer.parseInt(props.getProperty(key, Integer.toString(defaultValue)));
+    }
+
+    // Used by the constructor. The SplitStrategy property, checking that
+    // the insertion method is one that is supported.
+    private static SplitStrategy splitStrategy(Properties props) {
+        if (props == null) {
+            return new LinearSplit();
+        }
+        String insertionMethod = props.getProperty("InsertionMethod", RTree.INSERTION_GUTTMAN);
+        if (!insertionMethod.equals(RTree.INSERTION_GUTTMAN)) {
+            throw new IllegalArgumentException("Unsupported InsertionMethod " + insertionMethod);
+        }
+        return RTree.splitStrategy(props.getProperty("SplitStrategy", RTree.SPLIT_LINEAR));
+    }
+
+    private static String bulkLoadMethod(Properties props) {
+        if (props == null) {
+            return RTree.BULK_LOAD_STR;
+        }
+        String method = props.getProperty("BulkLoadMethod", RTree.BULK_LOAD_STR);
+        if (!method.equals(RTree.BULK_LOAD_STR) && !method.equals(RTree.BULK_LOAD_HILBERT)) {
+            throw new IllegalArgumentException("Unknown BulkLoadMethod " + method);
+        }
+        return method;
+    }
+
+    /**
+     * Set the strategy used to split overflowing nodes from now on.
+     */
+    public void setSplitStrategy(SplitStrategy splitStrategy) {
+        if (splitStrategy == null) {
+            throw new IllegalArgumentException("splitStrategy must not be null");
+        }
+        this.splitStrategy = splitStrategy;
+    }
+
+    /**
+     * Build the tree from the passed rectangles, replacing any entries
+     * already in the tree. The nodes are packed as by RTree.bulkLoad(),
+     * which the rectangles are loaded with first, so the heap needs room
+     * for an RTree of them while this runs.
+     *
+     * @return the handles of the new entries, in the iteration order of rects
+     */
+    public ArrayList<Entry> bulkLoad(Collection<Rectangle> rects) {
+        Properties props = new Properties();
+        props.setProperty("MaxNodeEntries", Integer.toString(maxNodeEntries));
+        props.setProperty("MinNodeEntries", Integer.toString(minNodeEntries));
+        props.setProperty("BulkLoadMethod", bulkLoadMethod);
+        RTree tree = new RTree();
+        tree.init(props);
+        ArrayList<Entry> loaded = tree.bulkLoad(rects);
+        IdentityHashMap<Entry, Integer> order = new IdentityHashMap<Entry, Integer>(loaded.size());
+        for (int i=0; i<loaded.size(); i++) {
+            order.put(loaded.get(i), i);
+        }
+
+        clear();
+        arena.free(root);
+        Entry[] handles = new Entry[loaded.size()];
+        root = copy(tree.getRoot(), order, handles);
+        size = tree.size();
+        return new ArrayList<Entry>(Arrays.asList(handles));
+    }
+
+    // Used by bulkLoad(). Copies the subtree of n, and returns its slot.
+    private int copy(Node n, IdentityHashMap<Entry, Integer> order, Entry[] handles) {
+        int slot = newNode(n.getLevel());
+        for (int i=0; i<n.size(); i++) {
+            int child;
+            int total;
+            if (n.isLeaf()) {
+                child = entries.allocate();
+                total = 1;
+                handles[order.get(n.get(i))] = new Handle(this, child, stamp(child));
+            } else {
+                child = copy(n.get(i), order, handles);
+                total = n.get(i).getTotal();
+            }
+            for (int d=0; d<dim; d++) {
+                entryMin[d] = n.getEntryMin(i, d);
+                entryMax[d] = n.getEntryMax(i, d);
+            }
+            addEntry(slot, child, total, entryMin, entryMax, 0);
+        }
+        return slot;
+    }
+
+    // Frees every node and entry, leaving the tree without a root.
+    private void clear() {
+        PackedNodes.NodeStack parent = new PackedNodes.NodeStack();
+        parent.push(root);
+        while (!parent.isEmpty()) {
+            int n = parent.pop();
+            boolean leaf = level(n) == 1;
+            for (int i=0; i<count(n); i++) {
+                if (leaf) {
+                    freeEntry(child(n, i));
+                } else {
+                    parent.push(child(n, i));
+                }
+            }
+            if (n != root) {
+                arena.free(n);
+            }
+        }
+        setCount(root, 0);
+        size = 0;
+    }
+
+    /**
+     * Returns the number of bytes of memory outside the heap reserved by
+     * the index, for both nodes and entries.
+     */
+    public long getReservedBytes() {
+        return arena.reservedBytes() + entries.reservedBytes();
+    }
+
+    /**
+     * Returns the number of nodes in the tree.
+     */
+    public int getNodeCount() {
+        return arena.size();
+    }
+
+    //-------------------------------------------------------------------------
+    // Reads and writes of the nodes and entries. Only absolute gets are used
+    // to read, so the buffers can be shared by any number of threads.
+    //-------------------------------------------------------------------------
+
+    private int newNode(int level) {
+        int n = arena.allocate();
+        ByteBuffer b = arena.buffer(n);
+        int base = arena.offset(n);
+        b.putInt(base + LEVEL, level);
+        b.putInt(base + COUNT, 0);
+        b.putInt(base + PARENT, NONE);
+        b.putInt(base + SLOT, NONE);
+        return n;
+    }
+
+    private int level(int n) {
+        return arena.buffer(n).getInt(arena.offset(n) + LEVEL);
+    }
+
+    private int count(int n) {
+        return arena.buffer(n).getInt(arena.offset(n) + COUNT);
+    }
+
+    private void setCount(int n, int count) {
+        arena.buffer(n).putInt(arena.offset(n) + COUNT, count);
+    }
+
+    private int parent(int n) {
+        return arena.buffer(n).getInt(arena.offset(n) + PARENT);
+    }
+
+    // the position of the entry of n in its parent
+    private int slot(int n) {
+        return arena.buffer(n).getInt(arena.offset(n) + SLOT);
+    }
+
+    private int child(int n, int i) {
+        return arena.buffer(n).getInt(arena.offset(n) + CHILDREN + 4 * i);
+    }
+
+    private int total(int n, int i) {
+        return arena.buffer(n).getInt(arena.offset(n) + totals + 4 * i);
+    }
+
+    private int stamp(int entry) {
+        return entries.buffer(entry).getInt(entries.offset(entry) + STAMP);
+    }
+
+    private void freeEntry(int entry) {
+        ByteBuffer b = entries.buffer(entry);
+        int base = entries.offset(entry);
+        b.putInt(base + STAMP, b.getInt(base + STAMP) + 1);
+        entries.free(entry);
+    }
+
+    // Records where the child of entry i of n is now found: in the entry
+    // table if n is a leaf, in the child node otherwise.
+    private void link(int n, int i) {
+        int child = child(n, i);
+        if (level(n) == 1) {
+            ByteBuffer b = entries.buffer(child);
+            int base = entries.offset(child);
+            b.putInt(base + LEAF, n);
+            b.putInt(base + INDEX, i);
+        } else {
+            ByteBuffer b = arena.buffer(child);
+            int base = arena.offset(child);
+            b.putInt(base + PARENT, n);
+            b.putInt(base + SLOT, i);
+        }
+    }
+
+    // Appends an entry to n, whose MBR is min[offset..offset+dim) and
+    // max[offset..offset+dim).
+    private void addEntry(int n, int child, int total, double[] min, double[] max, int offset) {
+        ByteBuffer b = arena.buffer(n);
+        int base = arena.offset(n);
+        int i = b.getInt(base + COUNT);
+        b.putInt(base + COUNT, i + 1);
+        b.putInt(base + CHILDREN + 4 * i, child);
+        b.putInt(base + totals + 4 * i, total);
+        for (int d=0; d<dim; d++) {
+            b.putDouble(base + mins + 8 * (d * capacity + i), min[offset + d]);
+            b.putDouble(base + maxs + 8 * (d * capacity + i), max[offset + d]);
+        }
+        link(n, i);
+    }
+
+    // Appends the node child to n, and sets the MBR and total of its entry.
+    private void addChild(int n, int child) {
+        int i = count(n);
+        setCount(n, i + 1);
+        arena.buffer(n).putInt(arena.offset(n) + CHILDREN + 4 * i, child);
+        link(n, i);
+        adjustEntry(n, i);
+    }
+
+    // Removes entry i of n, moving the last entry into its place.
+    private void removeEntry(int n, int i) {
+        ByteBuffer b = arena.buffer(n);
+        int base = arena.offset(n);
+        int last = b.getInt(base + COUNT) - 1;
+        b.putInt(base + COUNT, last);
+        if (i == last) {
+            return;
+        }
+        b.putInt(base + CHILDREN + 4 * i, b.getInt(base + CHILDREN + 4 * last));
+        b.putInt(base + totals + 4 * i, b.getInt(base + totals + 4 * last));
+        for (int d=0; d<dim; d++) {
+            b.putDouble(base + mins + 8 * (d * capacity + i), b.getDouble(base + mins + 8 * (d * capacity + last)));
+            b.putDouble(base + maxs + 8 * (d * capacity + i), b.getDouble(base + maxs + 8 * (d * capacity + last)));
+        }
+        link(n, i);
+    }
+
+    private void readEntry(int n, int i, double[] min, double[] max) {
+        ByteBuffer b = arena.buffer(n);
+        int base = arena.offset(n);
+        for (int d=0; d<dim; d++) {
+            min[d] = b.getDouble(base + mins + 8 * (d * capacity + i));
+            max[d] = b.getDouble(base + maxs + 8 * (d * capacity + i));
+        }
+    }
+
+    // Sets entry i of p to tightly contain the entries of its child, and
+    // its total to the number of entries below the child.
+    private void adjustEntry(int p, int i) {
+        int n = child(p, i);
+        ByteBuffer b = arena.buffer(n);
+        int base = arena.offset(n);
+        ByteBuffer pb = arena.buffer(p);
+        int pbase = arena.offset(p);
+        int count = b.getInt(base + COUNT);
+        int total = 0;
+        for (int j=0; j<count; j++) {
+            total += b.getInt(base + totals + 4 * j);
+        }
+        pb.putInt(pbase + totals + 4 * i, total);
+        for (int d=0; d<dim; d++) {
+            double lo = Double.POSITIVE_INFINITY;
+            double hi = Double.NEGATIVE_INFINITY;
+            int min = base + mins + 8 * d * capacity;
+            int max = base + maxs + 8 * d * capacity;
+            for (int j=0; j<count; j++) {
+                lo = Math.min(lo, b.getDouble(min + 8 * j));
+                hi = Math.max(hi, b.getDouble(max + 8 * j));
+            }
+            pb.putDouble(pbase + mins + 8 * (d * capacity + i), lo);
+            pb.putDouble(pbase + maxs + 8 * (d * capacity + i), hi);
+        }
+    }
+
+    // Used by Handle. The rectangle of an entry, or null if it has been
+    // deleted since the handle was made.
+    private Rectangle getRef(int entry, int stamp) {
+        if (stamp(entry) != stamp) {
+            return null;
+        }
+        int n = entries.buffer(entry).getInt(entries.offset(entry) + LEAF);
+        int i = entries.buffer(entry).getInt(entries.offset(entry) + INDEX);
+        return nodes.entry(arena.buffer(n), arena.offset(n), i);
+    }
+
+    //-------------------------------------------------------------------------
+    // insertion and deletion
+    //-------------------------------------------------------------------------
+
+    // Adds an entry to a node at the given level, splitting nodes on the
+    // way back up to the root as needed.
+    private void insert(int level, int child, int total, double[] min, double[] max) {
+        // I1 [Find position for new record] Invoke ChooseLeaf to select a
+        // leaf node L in which to place r
+        int n = chooseNode(min, max, level);
+
+        // I2 [Add record to leaf node] Install E, and if L now has too many
+        // entries, invoke SplitNode to obtain L and LL
+        addEntry(n, child, total, min, max, 0);
+        int split = count(n) > maxNodeEntries ? splitNode(n) : NONE;
+
+        // I3 [Propagate changes upwards] Adjust the entry of each node on the
+        // path in its parent, adding the entry of LL if a split was
+        // performed
+        while (n != root) {
+            int parent = parent(n);
+            adjustEntry(parent, slot(n));
+            if (split != NONE) {
+                addChild(parent, split);
+                split = count(parent) > maxNodeEntries ? splitNode(parent) : NONE;
+            }
+            n = parent;
+        }
+
+        // I4 [Grow tree taller] If node split propagation caused the root to
+        // split, create a new root whose children are the two resulting nodes.
+        if (split != NONE) {
+            int oldRoot = root;
+            root = newNode(level(oldRoot) + 1);
+            addChild(root, oldRoot);
+            addChild(root, split);
+        }
+    }
+
+    private int chooseNode(double[] min, double[] max, int level) {
+        int n = root;
+        while (level(n) != level) {
+            // CL3 [Choose subtree] Let F be the entry in N whose rectangle
+            // needs least enlargement to include EI. Resolve ties by choosing
+            // the entry with the rectangle of smaller area.
+            ByteBuffer b = arena.buffer(n);
+            int base = arena.offset(n);
+            int best = NONE;
+            double bestEnlargement = 0.0;
+            double bestArea = 0.0;
+            for (int i=0; i<count(n); i++) {
+                double area = 1.0;
+                double enlarged = 1.0;
+                for (int d=0; d<dim; d++) {
+                    double lo = b.getDouble(base + mins + 8 * (d * capacity + i));
+                    double hi = b.getDouble(base + maxs + 8 * (d * capacity + i));
+                    area *= hi - lo;
+                    enlarged *= Math.max(hi, max[d]) - Math.min(lo, min[d]);
+                }
+                double enlargement = enlarged - area;
+                if (best == NONE || enlargement < bestEnlargement
+                        || (enlargement == bestEnlargement && area < bestArea)) {
+                    best = i;
+                    bestEnlargement = enlargement;
+                    bestArea = area;
+                }
+            }
+            n = child(n, best);
+        }
+        return n;
+    }
+
+    // Splits n, which holds maxNodeEntries + 1 entries, between n and a new
+    // node at the same level, which is returned. The split strategy works on
+    // Node objects, so it is given a node of stand-ins for the entries, each
+    // only a rectangle, and the groups it makes are copied back.
+    private int splitNode(int n) {
+        int count = count(n);
+        group.clearEntry();
+        newGroup.clearEntry();
+        for (int i=0; i<count; i++) {
+            splitChild[i] = child(n, i);
+            splitTotal[i] = total(n, i);
+            readEntry(n, i, entryMin, entryMax);
+            standIns[i] = new Node(entryMin, entryMax);
+            if (i < count - 1) {
+                group.addEntry(standIns[i]);
+            }
+        }
+        splitStrategy.split(group, standIns[count - 1], newGroup, maxNodeEntries, minNodeEntries);
+
+        int newNode = newNode(level(n));
+        setCount(n, 0);
+        copyGroup(group, n);
+        copyGroup(newGroup, newNode);
+        Arrays.fill(standIns, 0, count, null);
+        return newNode;
+    }
+
+    // Used by splitNode(). Appends the entries whose stand-ins are in group
+    // to n.
+    private void copyGroup(Node group, int n) {
+        for (int j=0; j<group.size(); j++) {
+            int i = 0;
+            while (standIns[i] != group.get(j)) {
+                i++;
+            }
+            for (int d=0; d<dim; d++) {
+                entryMin[d] = standIns[i].getMin(d);
+                entryMax[d] = standIns[i].getMax(d);
+            }
+            addEntry(n, splitChild[i], splitTotal[i], entryMin, entryMax, 0);
+        }
+    }
+
+    private void deleteEntry(int entry) {
+        ByteBuffer b = entries.buffer(entry);
+        int base = entries.offset(entry);
+        int leaf = b.getInt(base + LEAF);
+        removeEntry(leaf, b.getInt(base + INDEX));
+        freeEntry(entry);
+        size--;
+        condenseTree(leaf);
+
+        // shrink the tree if possible (i.e. if root node has exactly one
+        // entry, and that entry is not a leaf node, delete the root (its
+        // entry becomes the new root)
+        while (count(root) == 1 && level(root) > 1) {
+            int oldRoot = root;
+            root = child(oldRoot, 0);
+            arena.free(oldRoot);
+            ByteBuffer rb = arena.buffer(root);
+            rb.putInt(arena.offset(root) + PARENT, NONE);
+            rb.putInt(arena.offset(root) + SLOT, NONE);
+        }
+    }
+
+    private void condenseTree(int n) {
+        // CT1 [Initialize] Set N=L. Set the list of eliminated nodes to be
+        // empty.
+        PackedNodes.NodeStack eliminated = new PackedNodes.NodeStack();
+
+        // CT2 [Find parent entry] If N is the root, go to CT6. Otherwise let
+        // P be the parent of N, and let En be N's entry in P
+        while (n != root) {
+            int parent = parent(n);
+
+            // CT3 [Eliminate under-full node] If N has too few entries,
+            // delete En from P and add N to the list of eliminated nodes.
+            // CT4 [Adjust covering rectangle] Otherwise adjust EnI to
+            // tightly contain all entries in N
+            if (count(n) < minNodeEntries) {
+                removeEntry(parent, slot(n));
+                eliminated.push(n);
+            } else {
+                adjustEntry(parent, slot(n));
+            }
+
+            // CT5 [Move up one level in tree] Set N=P and repeat from CT2
+            n = parent;
+        }
+
+        // CT6 [Reinsert orphaned entries] Reinsert all entries of the
+        // eliminated nodes at the level they were found, so that the leaves
+        // of their subtrees are on the same level as the leaves of the tree
+        while (!eliminated.isEmpty()) {
+            int e = eliminated.pop();
+            for (int j=0; j<count(e); j++) {
+                readEntry(e, j, entryMin, entryMax);
+                insert(level(e), child(e, j), total(e, j), entryMin, entryMax);
+            }
+            arena.free(e);
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    // implementation of SpatialIndex
+    //-------------------------------------------------------------------------
+
+    /**
+     * Adds a copy of r. The handle returned is the only way to refer to this
+     * entry rather than to any entry with the same coordinates.
+     *
+     * @see com.infomatiq.jsi.SpatialIndex#add(Rectangle)
+     */
+    public Entry add(Rectangle r) {
+        if (r.getdim() != dim) {
+            throw new IllegalArgumentException("Rectangle of dimension " + r.getdim() + " added to an index of dimension " + dim);
+        }
+        int entry = entries.allocate();
+        for (int d=0; d<dim; d++) {
+            entryMin[d] = r.getMin(d);
+            entryMax[d] = r.getMax(d);
+        }
+        insert(1, entry, 1, entryMin, entryMax);
+        size++;
+        return new Handle(this, entry, stamp(entry));
+    }
+
+    /**
+     * Deletes an entry whose rectangle has the same coordinates as r. r need
+     * not be the rectangle that was added, nor one returned by a query. If
+     * several entries have these coordinates, any one of them may be
+     * deleted; to delete a particular one, pass its handle to
+     * delete(Entry) instead.
+     *
+     * @return true if an entry was found and deleted.
+     */
+    public boolean delete(Rectangle r) {
+        if (size == 0 || r.getdim() != dim) {
+            return false;
+        }
+        PackedNodes.NodeStack parent = new PackedNodes.NodeStack();
+        boolean[] contains = new boolean[capacity];
+        boolean[] contained = new boolean[capacity];
+        parent.push(root);
+        while (!parent.isEmpty()) {
+            int n = parent.pop();
+            ByteBuffer b = arena.buffer(n);
+            int base = arena.offset(n);
+            int count = b.getInt(base + COUNT);
+            nodes.entryContains(b, base, r, contains);
+            if (b.getInt(base + LEVEL) == 1) {
+                // an entry which both contains r and is contained by r
+                // equals r
+                nodes.entryContainedBy(b, base, r, contained);
+                for (int i=0; i<count; i++) {
+                    if (contains[i] && contained[i]) {
+                        deleteEntry(b.getInt(base + CHILDREN + 4 * i));
+                        return true;
+                    }
+                }
+            } else {
+                for (int i=0; i<count; i++) {
+                    if (contains[i]) {
+                        parent.push(b.getInt(base + CHILDREN + 4 * i));
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deletes exactly the entry of the handle, which add() or bulkLoad() of
+     * this index returned, even if other entries have the same coordinates.
+     *
+     * @return false if the entry has already been deleted, or the handle is
+     * not one of this index.
+     */
+    public boolean delete(Entry e) {
+        if (!(e instanceof Handle)) {
+            return false;
+        }
+        Handle h = (Handle) e;
+        if (h.tree != this || stamp(h.entry) != h.stamp) {
+            return false;
+        }
+        deleteEntry(h.entry);
+        return true;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#intersects(Rectangle)
+     */
+    public boolean intersects(Rectangle r) {
+        return !intersects(r, new Visitor() {
+            public boolean visit(Rectangle found) {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#intersects(Rectangle, Visitor)
+     */
+    public boolean intersects(Rectangle r, Visitor v) {
+        return size == 0 || nodes.intersects(root, r, v);
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#withinDistance(Point, double, Visitor)
+     */
+    public boolean withinDistance(Point p, double distance, Visitor v) {
+        return size == 0 || nodes.withinDistance(root, p.getCoords(), distance, v);
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#contains(Rectangle)
+     */
+    public ArrayList<Rectangle> contains(Rectangle r) {
+        final ArrayList<Rectangle> result = new ArrayList<Rectangle>();
+        contains(r, new Visitor() {
+            public boolean visit(Rectangle found) {
+                result.add(found);
+                return true;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#contains(Rectangle, Visitor)
+     */
+    public boolean contains(Rectangle r, Visitor v) {
+        return size == 0 || nodes.contains(root, r, v);
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#count(Rectangle)
+     */
+    public int count(Rectangle r) {
+        return size == 0 ? 0 : nodes.count(root, r);
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#size()
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#getBounds()
+     */
+    public Rectangle getBounds() {
+        if (size == 0) {
+            return null;
+        }
+        ByteBuffer b = arena.buffer(root);
+        int base = arena.offset(root);
+        Rectangle result = nodes.entry(b, base, 0);
+        for (int i=1; i<count(root); i++) {
+            result.enlarge(nodes.entry(b, base, i));
+        }
+        return result;
+    }
+
+    public int getdim() {
+        return dim;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#getVersion()
+     */
+    public String getVersion() {
+        return "OffHeapRTree-" + version;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#nearestN(Point, int)
+     */
+    public ArrayList<Rectangle> nearestN(Point p, int k) {
+        assert k > 0;
+        if (size == 0) {
+            return new ArrayList<Rectangle>();
+        }
+        return nodes.nearestN(root, p.getCoords(), k);
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#nearestNBatch(List, int)
+     */
+    public ArrayList<ArrayList<Rectangle>> nearestNBatch(List<Point> points, int k) {
+        ArrayList<ArrayList<Rectangle>> result = new ArrayList<ArrayList<Rectangle>>(points.size());
+        for (Point p : points) {
+            result.add(nearestN(p, k));
+        }
+        return result;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#nearestIterator(Point)
+     */
+    public NeighborIterator nearestIterator(Point p) {
+        return nodes.nearestIterator(root, p.getCoords());
+    }
+
+    /**
+     * Checks the links between the nodes and the entries, and that the MBR
+     * and total of each entry of an inner node match its child.
+     */
+    public boolean checkConsistency() {
+        if (parent(root) != NONE) {
+            System.out.println("The root node has a parent!");
+            return false;
+        }
+        int found = checkNode(root, level(root));
+        if (found < 0) {
+            return false;
+        }
+        if (found != size || entries.size() != size) {
+            System.out.println("Found " + found + " entries in the tree and " + entries.size() + " in the entry table, but size is " + size);
+            return false;
+        }
+        return true;
+    }
+
+    // Used by checkConsistency(). Returns the number of entries below n, or
+    // -1 if n is inconsistent.
+    private int checkNode(int n, int level) {
+        int count = count(n);
+        if (level(n) != level || count > maxNodeEntries || (n != root && count < minNodeEntries)) {
+            System.out.println("Node " + n + " at level " + level(n) + " has " + count + " entries");
+            return -1;
+        }
+        double[] min = new double[dim];
+        double[] max = new double[dim];
+        int result = 0;
+        for (int i=0; i<count; i++) {
+            int child = child(n, i);
+            if (level == 1) {
+                ByteBuffer b = entries.buffer(child);
+                int base = entries.offset(child);
+                if (b.getInt(base + LEAF) != n || b.getInt(base + INDEX) != i) {
+                    System.out.println("Entry " + child + " is not found where the entry table says");
+                    return -1;
+                }
+                result++;
+                continue;
+            }
+            if (parent(child) != n || slot(child) != i) {
+                System.out.println("Node " + child + " does not link back to its parent");
+                return -1;
+            }
+            int total = checkNode(child, level - 1);
+            if (total < 0) {
+                return -1;
+            }
+            readEntry(n, i, min, max);
+            for (int j=0; j<count(child); j++) {
+                readEntry(child, j, entryMin, entryMax);
+                for (int d=0; d<dim; d++) {
+                    if (entryMin[d] < min[d] || entryMax[d] > max[d]) {
+                        System.out.println("Entry " + i + " of node " + n + " does not contain its child");
+                        return -1;
+                    }
+                }
+            }
+            if (total != total(n, i)) {
+                System.out.println("Entry " + i + " of node " + n + " has total " + total(n, i) + " instead of " + total);
+                return -1;
+            }
+            result += total;
+        }
+        return result;
+    }
+
+    /**
+     * The handle of an entry: its number, and the stamp it had when it was
+     * added.
+     */
+    private static class Handle implements Entry {
+
+        private final OffHeapRTree tree;
+        private final int entry;
+        private final int stamp;
+
+        Handle(OffHeapRTree tree, int entry, int stamp) {
+            this.tree = tree;
+            this.entry = entry;
+            this.stamp = stamp;
+        }
+
+        /**
+         * Returns a copy of the rectangle of the entry, or null if the entry
+         * has been deleted.
+         */
+        public Rectangle getRef() {
+            return tree.getRef(entry, stamp);
+        }
+    }
+}
@@ -0,0 +1,458 @@
+//   PackedNodes.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi.rtree;
+
+import com.infomatiq.jsi.NeighborIterator;
+import com.infomatiq.jsi.Rectangle;
+import com.infomatiq.jsi.Visitor;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>Used by PagedRTree and OffHeapRTree. The searches of an RTree whose
+ * nodes are laid out in ByteBuffers rather than kept as Node objects. A node
+ * is found at offset base(node) of the buffer returned by pin(node), and is
+ * laid out as:</p>
+ *
+ * <pre>
+ * level (int32), number of entries (int32), any fields of the subclass,
+ * then at the given offset the child references (int32 * capacity), the
+ * child entry counts (int32 * capacity), and the min and the max corners of
+ * the entries, packed one dimension after another as in Node (float64 *
+ * capacity * dimension, twice)
+ * </pre>
+ *
+ * <p>The child references of a leaf are not read, as the searches return
+ * new rectangles made from the coordinates of the entries. Only absolute
+ * gets are used, so any number of threads may search at once.</p>
+ */
+abstract class PackedNodes {
+
+    // offsets in a node
+    static final int LEVEL = 0;
+    static final int COUNT = 4;
+
+    final int dim;
+    final int capacity;
+    // offsets in a node
+    final int children;
+    final int totals;
+    final int mins;
+    final int maxs;
+
+    PackedNodes(int dim, int capacity, int children) {
+        this.dim = dim;
+        this.capacity = capacity;
+        this.children = children;
+        totals = children + 4 * capacity;
+        mins = children + 8 * capacity;
+        maxs = mins + 8 * capacity * dim;
+    }
+
+    /**
+     * Returns the number of bytes taken by a node.
+     */
+    int nodeBytes() {
+        return maxs + 8 * capacity * dim;
+    }
+
+    /**
+     * Returns the buffer that holds node, which may be read until
+     * unpin(node) is called.
+     */
+    abstract ByteBuffer pin(int node);
+
+    /**
+     * Returns the offset of node in the buffer returned by pin().
+     */
+    abstract int base(int node);
+
+    abstract void unpin(int node);
+
+    //-------------------------------------------------------------------------
+    // Reads from a node, found at offset base of buffer b
+    //-------------------------------------------------------------------------
+
+    boolean isLeaf(ByteBuffer b, int base) {
+        return b.getInt(base + LEVEL) == 1;
+    }
+
+    int count(ByteBuffer b, int base) {
+        return b.getInt(base + COUNT);
+    }
+
+    int child(ByteBuffer b, int base, int i) {
+        return b.getInt(base + children + 4 * i);
+    }
+
+    int total(ByteBuffer b, int base, int i) {
+        return b.getInt(base + totals + 4 * i);
+    }
+
+    // entry i of a node, as a new rectangle
+    Rectangle entry(ByteBuffer b, int base, int i) {
+        double[] min = new double[dim];
+        double[] max = new double[dim];
+        for (int d=0; d<dim; d++) {
+            min[d] = b.getDouble(base + mins + 8 * (d * capacity + i));
+            max[d] = b.getDouble(base + maxs + 8 * (d * capacity + i));
+        }
+        return new Rectangle(min, max);
+    }
+
+    // squared MINDIST between the point q and every entry of a node,
+    // written to dist[0..count)
+    void entryMindistSq(ByteBuffer b, int base, double[] q, double[] dist) {
+        int count = count(b, base);
+        Arrays.fill(dist, 0, count, 0.0);
+        for (int d=0; d<dim; d++) {
+            double qd = q[d];
+            int min = base + mins + 8 * d * capacity;
+            int max = base + maxs + 8 * d * capacity;
+            for (int i=0; i<count; i++) {
+                double temp = Math.max(b.getDouble(min + 8 * i) - qd, 0.0) + Math.max(qd - b.getDouble(max + 8 * i), 0.0);
+                dist[i] += temp * temp;
+            }
+        }
+    }
+
+    // whether each entry of a node intersects r, written to mask
+    void entryIntersects(ByteBuffer b, int base, Rectangle r, boolean[] mask) {
+        int count = count(b, base);
+        Arrays.fill(mask, 0, count, true);
+        for (int d=0; d<dim; d++) {
+            double lo = r.getMin(d);
+            double hi = r.getMax(d);
+            int min = base + mins + 8 * d * capacity;
+            int max = base + maxs + 8 * d * capacity;
+            for (int i=0; i<count; i++) {
+                mask[i] &= (b.getDouble(min + 8 * i) <= hi) & (b.getDouble(max + 8 * i) >= lo);
+            }
+        }
+    }
+
+    // whether each entry of a node is contained by r, written to mask
+    void entryContainedBy(ByteBuffer b, int base, Rectangle r, boolean[] mask) {
+        int count = count(b, base);
+        Arrays.fill(mask, 0, count, true);
+        for (int d=0; d<dim; d++) {
+            double lo = r.getMin(d);
+            double hi = r.getMax(d);
+            int min = base + mins + 8 * d * capacity;
+            int max = base + maxs + 8 * d * capacity;
+            for (int i=0; i<count; i++) {
+                mask[i] &= (b.getDouble(min + 8 * i) >= lo) & (b.getDouble(max + 8 * i) <= hi);
+            }
+        }
+    }
+
+    // whether each entry of a node contains r, written to mask
+    void entryContains(ByteBuffer b, int base, Rectangle r, boolean[] mask) {
+        int count = count(b, base);
+        Arrays.fill(mask, 0, count, true);
+        for (int d=0; d<dim; d++) {
+            double lo = r.getMin(d);
+            double hi = r.getMax(d);
+            int min = base + mins + 8 * d * capacity;
+            int max = base + maxs + 8 * d * capacity;
+            for (int i=0; i<count; i++) {
+                mask[i] &= (b.getDouble(min + 8 * i) <= lo) & (b.getDouble(max + 8 * i) >= hi);
+            }
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    // Searches of the tree under root, as specified by SpatialIndex
+    //-------------------------------------------------------------------------
+
+    boolean intersects(int root, Rectangle r, Visitor v) {
+        NodeStack parent = new NodeStack();
+        boolean[] mask = new boolean[capacity];
+        parent.push(root);
+        while (!parent.isEmpty()) {
+            int node = parent.pop();
+            ByteBuffer b = pin(node);
+            int base = base(node);
+            try {
+                entryIntersects(b, base, r, mask);
+                int count = count(b, base);
+                if (!isLeaf(b, base)) {
+                    for (int i = count - 1; i >= 0; i--) {
+                        if (mask[i]) {
+                            parent.push(child(b, base, i));
+                        }
+                    }
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        if (mask[i] && !v.visit(entry(b, base, i))) {
+                            return false;
+                        }
+                    }
+                }
+            } finally {
+                unpin(node);
+            }
+        }
+        return true;
+    }
+
+    boolean withinDistance(int root, double[] q, double distance, Visitor v) {
+        if (distance < 0.0) {
+            return true;
+        }
+        double distanceSq = distance * distance;
+        NodeStack parent = new NodeStack();
+        double[] dist = new double[capacity];
+        parent.push(root);
+        while (!parent.isEmpty()) {
+            int node = parent.pop();
+            ByteBuffer b = pin(node);
+            int base = base(node);
+            try {
+                entryMindistSq(b, base, q, dist);
+                int count = count(b, base);
+                if (!isLeaf(b, base)) {
+                    for (int i = count - 1; i >= 0; i--) {
+                        if (dist[i] <= distanceSq) {
+                            parent.push(child(b, base, i));
+                        }
+                    }
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        if (dist[i] <= distanceSq && !v.visit(entry(b, base, i))) {
+                            return false;
+                        }
+                    }
+                }
+            } finally {
+                unpin(node);
+            }
+        }
+        return true;
+    }
+
+    boolean contains(int root, Rectangle r, Visitor v) {
+        NodeStack parent = new NodeStack();
+        boolean[] mask = new boolean[capacity];
+        parent.push(root);
+        while (!parent.isEmpty()) {
+            int node = parent.pop();
+            ByteBuffer b = pin(node);
+            int base = base(node);
+            try {
+                int count = count(b, base);
+                if (!isLeaf(b, base)) {
+                    entryIntersects(b, base, r, mask);
+                    for (int i = count - 1; i >= 0; i--) {
+                        if (mask[i]) {
+                            parent.push(child(b, base, i));
+                        }
+                    }
+                } else {
+                    entryContainedBy(b, base, r, mask);
+                    for (int i = 0; i < count; i++) {
+                        if (mask[i] && !v.visit(entry(b, base, i))) {
+                            return false;
+                        }
+                    }
+                }
+            } finally {
+                unpin(node);
+            }
+        }
+        return true;
+    }
+
+    int count(int root, Rectangle r) {
+        int result = 0;
+        NodeStack parent = new NodeStack();
+        boolean[] contained = new boolean[capacity];
+        boolean[] intersects = new boolean[capacity];
+        parent.push(root);
+        while (!parent.isEmpty()) {
+            int node = parent.pop();
+            ByteBuffer b = pin(node);
+            int base = base(node);
+            try {
+                int count = count(b, base);
+                entryContainedBy(b, base, r, contained);
+                if (isLeaf(b, base)) {
+                    for (int i = 0; i < count; i++) {
+                        if (contained[i]) {
+                            result++;
+                        }
+                    }
+                } else {
+                    entryIntersects(b, base, r, intersects);
+                    for (int i = 0; i < count; i++) {
+                        if (contained[i]) {
+                            result += total(b, base, i);
+                        } else if (intersects[i]) {
+                            parent.push(child(b, base, i));
+                        }
+                    }
+                }
+            } finally {
+                unpin(node);
+            }
+        }
+        return result;
+    }
+
+    ArrayList<Rectangle> nearestN(int root, double[] q, int k) {
+        assert k > 0;
+        BoundedMaxHeap<Rectangle> knn = new BoundedMaxHeap<Rectangle>(k);
+        PageQueue queue = new PageQueue(capacity);
+        double[] dist = new double[capacity];
+
+        queue.push(root, 0.0);
+        while (!queue.isEmpty()) {
+            if (queue.peekKey() > knn.threshold()) {
+                break;
+            }
+            int node = (int) queue.pop();
+            ByteBuffer b = pin(node);
+            int base = base(node);
+            try {
+                entryMindistSq(b, base, q, dist);
+                int count = count(b, base);
+                if (isLeaf(b, base)) {
+                    for (int i=0; i<count; i++) {
+                        // only make the rectangles which are kept
+                        if (dist[i] <= knn.threshold()) {
+                            knn.insert(entry(b, base, i), dist[i]);
+                        }
+                    }
+                } else {
+                    double furthest = knn.threshold();
+                    for (int i=0; i<count; i++) {
+                        if (furthest >= dist[i]) {
+                            queue.push(child(b, base, i), dist[i]);
+                        }
+                    }
+                }
+            } finally {
+                unpin(node);
+            }
+        }
+        ArrayList<Rectangle> result = new ArrayList<Rectangle>(knn.size());
+        knn.drainAscending(result);
+        return result;
+    }
+
+    NeighborIterator nearestIterator(int root, double[] q) {
+        return new NearestIterator(root, q);
+    }
+
+    /**
+     * Used by the depth first searches, here and in OffHeapRTree. A stack of
+     * node references.
+     */
+    static class NodeStack {
+
+        private int[] nodes = new int[64];
+        private int size = 0;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void push(int node) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+            }
+            nodes[size++] = node;
+        }
+
+        int pop() {
+            return nodes[--size];
+        }
+    }
+
+    /**
+     * Used by nearestIterator(). The queue holds both nodes and the entries
+     * of leaves: an entry is its leaf in the high 32 bits and its index in
+     * the low 32 bits, and a node has all the low bits set.
+     */
+    private class NearestIterator implements NeighborIterator {
+
+        private static final long NODE = 0xFFFFFFFFL;
+
+        private final double[] q;
+        private final PageQueue queue = new PageQueue(capacity);
+        private final double[] dist = new double[capacity];
+        private double distance = Double.NaN;
+
+        NearestIterator(int root, double[] q) {
+            this.q = q;
+            queue.push((long) root << 32 | NODE, 0.0);
+        }
+
+        // expand nodes until a leaf entry is at the head of the queue
+        public boolean hasNext() {
+            while (!queue.isEmpty()) {
+                long value = queue.peek();
+                if ((value & NODE) != NODE) {
+                    return true;
+                }
+                queue.pop();
+                int node = (int) (value >>> 32);
+                ByteBuffer b = pin(node);
+                int base = base(node);
+                try {
+                    entryMindistSq(b, base, q, dist);
+                    boolean leaf = isLeaf(b, base);
+                    for (int i=0; i<count(b, base); i++) {
+                        if (leaf) {
+                            queue.push((long) node << 32 | i, dist[i]);
+                        } else {
+                            queue.push((long) child(b, base, i) << 32 | NODE, dist[i]);
+                        }
+                    }
+                } finally {
+                    unpin(node);
+                }
+            }
+            return false;
+        }
+
+        public Rectangle next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            distance = Math.sqrt(queue.peekKey());
+            long value = queue.pop();
+            int node = (int) (value >>> 32);
+            ByteBuffer b = pin(node);
+            try {
+                return entry(b, base(node), (int) (value & NODE));
+            } finally {
+                unpin(node);
+            }
+        }
+
+        public double distance() {
+            return distance;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+//   PageQueue.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi.rtree;
+
+import java.util.Arrays;
+
+/**
+ * <p>Used by PagedRTree and OffHeapRTree. A binary min-heap of long values
+ * keyed by a distance, kept in two parallel arrays, as BranchQueue is for
+ * nodes. The values are references to pages or to the entries of a page.</p>
+ */
+class PageQueue {
+
+    private double[] keys;
+    private long[] values;
+    private int size = 0;
+
+    PageQueue(int capacity) {
+        keys = new double[Math.max(capacity, 1)];
+        values = new long[Math.max(capacity, 1)];
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    void push(long value, double key) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        int index = size++;
+        // Consider the index to be a "hole"; copy each parent down into the
+        // hole until the new key fits
+        while (index > 0) {
+            int parentIndex = (index - 1) >>> 1;
+            if (keys[parentIndex] <= key) {
+                break;
+            }
+            keys[index] = keys[parentIndex];
+            values[index] = values[parentIndex];
+            index = parentIndex;
+        }
+        keys[index] = key;
+        values[index] = value;
+    }
+
+    // the smallest key in the queue
+    double peekKey() {
+        assert size > 0;
+        return keys[0];
+    }
+
+    // the value with the smallest key
+    long peek() {
+        assert size > 0;
+        return values[0];
+    }
+
+    // remove and return the value with the smallest key
+    long pop() {
+        assert size > 0;
+        long result = values[0];
+        size--;
+        double key = keys[size];
+        long value = values[size];
+        if (size > 0) {
+            // move the hole at the root down until the last entry fits
+            int index = 0;
+            int childIndex = 1;
+            while (childIndex < size) {
+                if (childIndex + 1 < size && keys[childIndex + 1] < keys[childIndex]) {
+                    childIndex++;
+                }
+                if (keys[childIndex] >= key) {
+                    break;
+                }
+                keys[index] = keys[childIndex];
+                values[index] = values[childIndex];
+                index = childIndex;
+                childIndex = (index * 2) + 1;
+            }
+            keys[index] = key;
+            values[index] = value;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,510 @@
+//   PagedRTree.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi.rtree;
+
+import com.infomatiq.jsi.Entry;
+import com.infomatiq.jsi.NeighborIterator;
+import com.infomatiq.jsi.Point;
+import com.infomatiq.jsi.Rectangle;
+import com.infomatiq.jsi.SpatialIndex;
+import com.infomatiq.jsi.Visitor;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>A read only RTree kept in a file of fixed size pages, one node per
+ * page, which is mapped into memory rather than read. Queries read the MBRs
+ * of the entries straight from the mapping, so the nodes never become
+ * objects, and only the rectangles found are created. The heap needed does
+ * not depend on the size of the index, and the operating system keeps the
+ * pages in use in its page cache.</p>
+ *
+ * <p>The file is written from an RTree by write(), which keeps the nodes of
+ * the tree as they are. The layout is little-endian throughout:</p>
+ *
+ * <pre>
+ * page 0:  magic "JSIP", format version, page size, dimension, node
+ *          capacity, number of entries, level of the root, number of pages
+ *          (int32 each)
+ * page 1:  the root; the nodes follow level by level
+ * a page:  level (int32), number of entries (int32),
+ *          child pages (int32 * capacity), child entry counts (int32 *
+ *          capacity), then the min and the max corners of the entries,
+ *          packed one dimension after another as in Node (float64 *
+ *          capacity * dimension, twice)
+ * </pre>
+ *
+ * <p>The page size is the smallest power of two, and at least 4096 bytes,
+ * that holds a full node. Any number of threads may query the index at
+ * once. add() and delete() throw UnsupportedOperationException.</p>
+ *
+ * <p>Where the memory used must be bounded, the pages can be read through a
+ * BufferPool instead of mapped.</p>
+ */
+public class PagedRTree implements SpatialIndex, Closeable {
+
+    // "JSIP" in little-endian
+    private static final int MAGIC = 'J' | 'S' << 8 | 'I' << 16 | 'P' << 24;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int MIN_PAGE_SIZE = 4096;
+    // a ByteBuffer is indexed by int, so the file is mapped in chunks of at
+    // most 2^CHUNK_BITS bytes, each a whole number of pages
+    private static final int CHUNK_BITS = 30;
+    private static final int ROOT_PAGE = 1;
+    // offsets in a page
+    private static final int LEVEL = 0;
+    private static final int COUNT = 4;
+    private static final int CHILDREN = 8;
+
+    private final RandomAccessFile file;
+    // the mapped file, or null if the pages are read through pool
+    private final ByteBuffer[] chunks;
+    private final BufferPool pool;
+    private final int pageBits;
+    private final int dim;
+    private final int capacity;
+    private final int size;
+    private final int rootLevel;
+    // the layout of the pages, and the searches
+    private final PackedNodes nodes;
+    private final Rectangle bounds;
+    // number of pages kept pinned in the pool
+    private int residentPages = 0;
+
+    /**
+     * Opens an index written by write(), and maps it into memory.
+     *
+     * @throws IOException if the file is not a paged RTree, or cannot be
+     * read.
+     */
+    public PagedRTree(File f) throws IOException {
+        this(f, 0, true);
+    }
+
+    /**
+     * Opens an index written by write(), and reads its pages through a
+     * BufferPool of the given number of pages. Unlike a mapping, this puts
+     * a hard limit on the memory used. The levels nearest the root, as many
+     * as fit in half of the pool, are read at once and never evicted. Each
+     * query pins one page at a time, so the pool needs at least as many
+     * pages as there are threads querying the index at once.
+     *
+     * @throws IOException if the file is not a paged RTree, or cannot be
+     * read.
+     */
+    public PagedRTree(File f, int poolPages) throws IOException {
+        this(f, poolPages, false);
+    }
+
+    private PagedRTree(File f, int poolPages, boolean mapped) throws IOException {
+        file = new RandomAccessFile(f, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new EOFException("Unexpected end of paged RTree");
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a paged RTree");
+            }
+            int formatVersion = header.getInt();
+            if (formatVersion != VERSION) {
+                throw new IOException("Unsupported paged RTree format version " + formatVersion);
+            }
+            int pageSize = header.getInt();
+            dim = header.getInt();
+            capacity = header.getInt();
+            size = header.getInt();
+            rootLevel = header.getInt();
+            int pages = header.getInt();
+            if (pageSize < MIN_PAGE_SIZE || pageSize > 1 << CHUNK_BITS || Integer.bitCount(pageSize) != 1
+                    || dim < 0 || capacity < 2 || pageBytes(dim, capacity) > pageSize
+                    || size < 0 || rootLevel < 1 || pages <= ROOT_PAGE) {
+                throw new IOException("Corrupt paged RTree header");
+            }
+            pageBits = Integer.numberOfTrailingZeros(pageSize);
+            nodes = new PackedNodes(dim, capacity, CHILDREN) {
+                ByteBuffer pin(int page) {
+                    return PagedRTree.this.pin(page);
+                }
+
+                int base(int page) {
+                    return PagedRTree.this.base(page);
+                }
+
+                void unpin(int page) {
+                    PagedRTree.this.unpin(page);
+                }
+            };
+
+            long length = (long) pages << pageBits;
+            if (channel.size() < length) {
+                throw new EOFException("Paged RTree is truncated");
+            }
+            if (mapped) {
+                pool = null;
+                chunks = new ByteBuffer[(int) ((length + (1L << CHUNK_BITS) - 1) >>> CHUNK_BITS)];
+                for (int c = 0; c < chunks.length; c++) {
+                    long position = (long) c << CHUNK_BITS;
+                    long chunkSize = Math.min(1L << CHUNK_BITS, length - position);
+                    chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, position, chunkSize).order(ByteOrder.LITTLE_ENDIAN);
+                }
+            } else {
+                pool = new BufferPool(channel, pageSize, poolPages);
+                chunks = null;
+            }
+            bounds = rootBounds();
+            if (pool != null) {
+                pinUpperLevels(pages);
+            }
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    // bytes taken by a node
+    private static int pageBytes(int dim, int capacity) {
+        return CHILDREN + 8 * capacity + 16 * capacity * dim;
+    }
+
+    /**
+     * Writes tree to a file which can be opened as a PagedRTree, replacing
+     * the file if it exists. Each node of the tree becomes a page.
+     */
+    public static void write(RTree tree, File f) throws IOException {
+        Node root = tree.getRoot();
+        int dim = root.getdim();
+        int capacity = tree.getMaxNodeEntries();
+        int pageSize = MIN_PAGE_SIZE;
+        while (pageSize < pageBytes(dim, capacity)) {
+            pageSize <<= 1;
+        }
+        int totals = CHILDREN + 4 * capacity;
+        int mins = CHILDREN + 8 * capacity;
+        int maxs = mins + 8 * capacity * dim;
+
+        RandomAccessFile out = new RandomAccessFile(f, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            channel.truncate(0);
+            ByteBuffer page = ByteBuffer.allocate(pageSize).order(ByteOrder.LITTLE_ENDIAN);
+
+            // write the nodes level by level, so that the children of a
+            // node are given the next free pages as it is written
+            ArrayDeque<Node> queue = new ArrayDeque<Node>();
+            queue.add(root);
+            int next = ROOT_PAGE + 1;
+            int at = ROOT_PAGE;
+            while (!queue.isEmpty()) {
+                Node n = queue.poll();
+                Arrays.fill(page.array(), (byte) 0);
+                page.putInt(LEVEL, n.getLevel());
+                page.putInt(COUNT, n.size());
+                for (int i=0; i<n.size(); i++) {
+                    if (!n.isLeaf()) {
+                        page.putInt(CHILDREN + 4 * i, next++);
+                        page.putInt(totals + 4 * i, n.get(i).getTotal());
+                        queue.add(n.get(i));
+                    }
+                    for (int d=0; d<dim; d++) {
+                        page.putDouble(mins + 8 * (d * capacity + i), n.getEntryMin(i, d));
+                        page.putDouble(maxs + 8 * (d * capacity + i), n.getEntryMax(i, d));
+                    }
+                }
+                writePage(channel, page, (long) at++ * pageSize);
+            }
+
+            Arrays.fill(page.array(), (byte) 0);
+            page.putInt(0, MAGIC);
+            page.putInt(4, VERSION);
+            page.putInt(8, pageSize);
+            page.putInt(12, dim);
+            page.putInt(16, capacity);
+            page.putInt(20, tree.size());
+            page.putInt(24, root.getLevel());
+            page.putInt(28, at);
+            writePage(channel, page, 0);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writePage(FileChannel channel, ByteBuffer page, long position) throws IOException {
+        page.clear();
+        while (page.hasRemaining()) {
+            position += channel.write(page, position);
+        }
+    }
+
+    /**
+     * Returns the buffer pool the pages are read through, for its hit and
+     * miss counts, or null if the file is mapped.
+     */
+    public BufferPool getBufferPool() {
+        return pool;
+    }
+
+    /**
+     * Returns the number of pages of the upper levels of the tree which are
+     * kept in the buffer pool for good.
+     */
+    public int getResidentPages() {
+        return residentPages;
+    }
+
+    /**
+     * Closes the file. A mapping is only released when this index is
+     * garbage collected, so it may still be queried, but should not be.
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+
+    //-------------------------------------------------------------------------
+    // Reads from the pages. A page is pinned while it is read, and found in
+    // the buffer returned at the offset given by base(). When the file is
+    // mapped, the buffer is the chunk that holds the page, and pinning is
+    // free. Only absolute gets are used, so the buffers can be shared by any
+    // number of threads.
+    //-------------------------------------------------------------------------
+
+    private ByteBuffer pin(int page) {
+        if (pool == null) {
+            return chunks[page >>> (CHUNK_BITS - pageBits)];
+        }
+        try {
+            return pool.pin(page);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read page " + page + " of the paged RTree", e);
+        }
+    }
+
+    private int base(int page) {
+        if (pool == null) {
+            return (page & ((1 << (CHUNK_BITS - pageBits)) - 1)) << pageBits;
+        }
+        return 0;
+    }
+
+    private void unpin(int page) {
+        if (pool != null) {
+            pool.unpin(page, false);
+        }
+    }
+
+    // Used by the constructor. Pins the pages of the levels nearest the root
+    // for good, as many whole levels as fit in half of the pool, so that the
+    // queries only ever wait for the pages of the lower levels. The nodes
+    // are written level by level, and the first node of each level is the
+    // first child of the first node of the level above.
+    private void pinUpperLevels(int pages) {
+        int[] start = new int[rootLevel + 1];
+        start[rootLevel] = ROOT_PAGE;
+        for (int level = rootLevel; level > 1; level--) {
+            ByteBuffer b = pin(start[level]);
+            try {
+                if (nodes.count(b, base(start[level])) == 0) {
+                    return;
+                }
+                start[level - 1] = nodes.child(b, base(start[level]), 0);
+            } finally {
+                unpin(start[level]);
+            }
+        }
+        int end = ROOT_PAGE;
+        for (int level = rootLevel; level >= 1; level--) {
+            int next = level > 1 ? start[level - 1] : pages;
+            if (next - ROOT_PAGE > pool.getCapacity() / 2) {
+                break;
+            }
+            end = next;
+        }
+        for (int page = ROOT_PAGE; page < end; page++) {
+            pin(page);
+        }
+        residentPages = end - ROOT_PAGE;
+    }
+
+    // Used by the constructor. The union of the entries of the root.
+    private Rectangle rootBounds() {
+        if (size == 0) {
+            return null;
+        }
+        ByteBuffer b = pin(ROOT_PAGE);
+        int base = base(ROOT_PAGE);
+        try {
+            Rectangle result = nodes.entry(b, base, 0);
+            for (int i=1; i<nodes.count(b, base); i++) {
+                result.enlarge(nodes.entry(b, base, i));
+            }
+            return result;
+        } finally {
+            unpin(ROOT_PAGE);
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    // implementation of SpatialIndex
+    //-------------------------------------------------------------------------
+
+    /**
+     * Not supported, as the index is read only.
+     */
+    public Entry add(Rectangle r) {
+        throw new UnsupportedOperationException("PagedRTree is read only");
+    }
+
+    /**
+     * Not supported, as the index is read only.
+     */
+    public boolean delete(Rectangle r) {
+        throw new UnsupportedOperationException("PagedRTree is read only");
+    }
+
+    /**
+     * Not supported, as the index is read only.
+     */
+    public boolean delete(Entry e) {
+        throw new UnsupportedOperationException("PagedRTree is read only");
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#intersects(Rectangle)
+     */
+    public boolean intersects(Rectangle r) {
+        return !intersects(r, new Visitor() {
+            public boolean visit(Rectangle found) {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#intersects(Rectangle, Visitor)
+     */
+    public boolean intersects(Rectangle r, Visitor v) {
+        return size == 0 || !bounds.intersects(r) || nodes.intersects(ROOT_PAGE, r, v);
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#withinDistance(Point, double, Visitor)
+     */
+    public boolean withinDistance(Point p, double distance, Visitor v) {
+        return size == 0 || nodes.withinDistance(ROOT_PAGE, p.getCoords(), distance, v);
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#contains(Rectangle)
+     */
+    public ArrayList<Rectangle> contains(Rectangle r) {
+        final ArrayList<Rectangle> result = new ArrayList<Rectangle>();
+        contains(r, new Visitor() {
+            public boolean visit(Rectangle found) {
+                result.add(found);
+                return true;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#contains(Rectangle, Visitor)
+     */
+    public boolean contains(Rectangle r, Visitor v) {
+        return size == 0 || !bounds.intersects(r) || nodes.contains(ROOT_PAGE, r, v);
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#count(Rectangle)
+     */
+    public int count(Rectangle r) {
+        if (size == 0 || !bounds.intersects(r)) {
+            return 0;
+        }
+        return nodes.count(ROOT_PAGE, r);
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#size()
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#getBounds()
+     */
+    public Rectangle getBounds() {
+        return bounds == null ? null : bounds.copy();
+    }
+
+    public int getdim() {
+        return dim;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#getVersion()
+     */
+    public String getVersion() {
+        return "PagedRTree-1.0b8";
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#nearestN(Point, int)
+     */
+    public ArrayList<Rectangle> nearestN(Point p, int k) {
+        assert k > 0;
+        if (size == 0) {
+            return new ArrayList<Rectangle>();
+        }
+        return nodes.nearestN(ROOT_PAGE, p.getCoords(), k);
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#nearestNBatch(List, int)
+     */
+    public ArrayList<ArrayList<Rectangle>> nearestNBatch(List<Point> points, int k) {
+        ArrayList<ArrayList<Rectangle>> result = new ArrayList<ArrayList<Rectangle>>(points.size());
+        for (Point p : points) {
+            result.add(nearestN(p, k));
+        }
+        return result;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#nearestIterator(Point)
+     */
+    public NeighborIterator nearestIterator(Point p) {
+        // an empty tree still has an empty root page
+        return nodes.nearestIterator(ROOT_PAGE, p.getCoords());
+    }
+}
@@ -0,0 +1,74 @@
+//   QuadraticSplit.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi.rtree;
+
+import com.infomatiq.jsi.Rectangle;
+import java.util.ArrayList;
+
+/**
+ * <p>Guttman's quadratic split. The seeds are the pair of entries that would
+ * waste the most area if they were put in the same group, which is found by
+ * examining every pair of entries. This costs more than the linear split, but
+ * usually gives groups with less overlap.</p>
+ */
+public class QuadraticSplit extends GuttmanSplit {
+
+    /**
+     * Pick the seeds used to split a node.
+     *
+     * PS1 [Calculate inefficiency of grouping entries together] For each pair
+     * of entries E1 and E2, compose a rectangle J including E1 and E2, and
+     * calculate d = area(J) - area(E1) - area(E2).
+     * PS2 [Choose the most wasteful pair] Choose the pair with the largest d.
+     */
+    ArrayList<Node> pickSeeds(Node n, Node rect) {
+        // index n.size() stands for rect
+        int size = n.size() + 1;
+        double[] area = new double[size];
+        for (int i = 0; i < n.size(); i++) {
+            area[i] = n.entryArea(i);
+        }
+        area[n.size()] = rect.area();
+
+        double maxWaste = Double.NEGATIVE_INFINITY;
+        int seed1 = -1;
+        int seed2 = -1;
+        for (int i = 0; i < size; i++) {
+            Rectangle e1 = i < n.size() ? n.get(i) : rect;
+            for (int j = i + 1; j < size; j++) {
+                // area(J) is the area of one entry plus the enlargement
+                // needed to include the other
+                double waste;
+                if (j < n.size()) {
+                    waste = n.entryEnlargement(j, e1) - area[i];
+                } else {
+                    waste = e1.enlargementArea(rect) - area[j];
+                }
+                if (waste > maxWaste) {
+                    maxWaste = waste;
+                    seed1 = i;
+                    seed2 = j;
+                }
+            }
+        }
+
+        ArrayList<Node> seed = new ArrayList<Node>();
+        seed.add(seed1 < n.size() ? n.get(seed1) : null);
+        seed.add(seed2 < n.size() ? n.get(seed2) : null);
+        return seed;
+    }
+}
@@ -0,0 +1,151 @@
+//   RStarSplit.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi.rtree;
+
+import com.infomatiq.jsi.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * <p>The topological split of the R*-tree of N. Beckmann, H.-P. Kriegel, R.
+ * Schneider and B. Seeger, "The R*-tree: an efficient and robust access
+ * method for points and rectangles" (1990). It sorts the entries along every
+ * axis, so it is the most expensive of the splits, but it gives nodes with
+ * small margins and little overlap. It is the default split when RTree uses
+ * R* insertion.</p>
+ */
+public class RStarSplit implements SplitStrategy {
+
+    /**
+     * Split a node with the topological split of the R*-tree. For each axis,
+     * the entries are sorted by their lower and then by their upper bounds,
+     * and every distribution into two groups of at least minNodeEntries is
+     * considered. The split axis is the one with the smallest sum of group
+     * margins; along it, the distribution with the least overlap between the
+     * groups is taken, resolving ties by the least total area.
+     */
+    public void split(Node n, Node rect, Node newNode, int maxNodeEntries, int minNodeEntries) {
+        assert n.size() == maxNodeEntries : "Error:Not enough entires before spliting a Node!";
+
+        ArrayList<Node> entries = n.copyEntry();
+        entries.add(rect);
+        int dim = rect.getdim();
+
+        // S1 [ChooseSplitAxis] Determine the axis, perpendicular to which the
+        // split is performed
+        int splitAxis = 0;
+        double minMargin = Double.MAX_VALUE;
+        for (int axis = 0; axis < dim; axis++) {
+            double margin = 0.0;
+            for (int bound = 0; bound < 2; bound++) {
+                Collections.sort(entries, new BoundComparator(axis, bound == 0));
+                Rectangle[] first = groupBounds(entries, true);
+                Rectangle[] second = groupBounds(entries, false);
+                for (int k = minNodeEntries; k <= entries.size() - minNodeEntries; k++) {
+                    margin += first[k - 1].margin() + second[k].margin();
+                }
+            }
+            if (margin < minMargin) {
+                minMargin = margin;
+                splitAxis = axis;
+            }
+        }
+
+        // S2 [ChooseSplitIndex] Along the chosen axis, choose the
+        // distribution with the minimum overlap value, resolving ties by
+        // the minimum area value
+        ArrayList<Node> best = null;
+        int bestSplit = -1;
+        double minOverlap = Double.MAX_VALUE;
+        double minArea = Double.MAX_VALUE;
+        for (int bound = 0; bound < 2; bound++) {
+            ArrayList<Node> sorted = new ArrayList<Node>(entries);
+            Collections.sort(sorted, new BoundComparator(splitAxis, bound == 0));
+            Rectangle[] first = groupBounds(sorted, true);
+            Rectangle[] second = groupBounds(sorted, false);
+            for (int k = minNodeEntries; k <= sorted.size() - minNodeEntries; k++) {
+                double overlap = first[k - 1].overlap(second[k]);
+                double area = first[k - 1].area() + second[k].area();
+                if (overlap < minOverlap || (overlap == minOverlap && area < minArea)) {
+                    minOverlap = overlap;
+                    minArea = area;
+                    best = sorted;
+                    bestSplit = k;
+                }
+            }
+        }
+
+        // S3 Distribute the entries into two groups
+        n.clearEntry();
+        for (int i = 0; i < best.size(); i++) {
+            if (i < bestSplit) {
+                n.addEntry(best.get(i));
+            } else {
+                newNode.addEntry(best.get(i));
+            }
+        }
+        assert n.size() + newNode.size() == maxNodeEntries + 1 : "Error:Node lost while spliting a Node!";
+    }
+
+    /**
+     * Used by split(). If prefix is true, element i of the result is
+     * the MBR of entries 0..i; otherwise it is the MBR of entries i..size-1.
+     */
+    private static Rectangle[] groupBounds(List<Node> entries, boolean prefix) {
+        Rectangle[] bounds = new Rectangle[entries.size()];
+        Rectangle r = new Rectangle();
+        for (int j = 0; j < entries.size(); j++) {
+            int i = prefix ? j : entries.size() - 1 - j;
+            r.enlarge(entries.get(i));
+            bounds[i] = r.copy();
+        }
+        return bounds;
+    }
+
+    /**
+     * Orders nodes by the lower (or upper) bound of their MBR along one axis,
+     * resolving ties by the other bound.
+     */
+    private static class BoundComparator implements Comparator<Node> {
+
+        private final int axis;
+        private final boolean lower;
+
+        BoundComparator(int axis, boolean lower) {
+            this.axis = axis;
+            this.lower = lower;
+        }
+
+        public int compare(Node n1, Node n2) {
+            int result;
+            if (lower) {
+                result = Double.compare(n1.getMin(axis), n2.getMin(axis));
+                if (result == 0) {
+                    result = Double.compare(n1.getMax(axis), n2.getMax(axis));
+                }
+            } else {
+                result = Double.compare(n1.getMax(axis), n2.getMax(axis));
+                if (result == 0) {
+                    result = Double.compare(n1.getMin(axis), n2.getMin(axis));
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -18,13 +18,27 @@
 //  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package com.infomatiq.jsi.rtree;
 
-import com.infomatiq.jsi.HeapSort;
+import com.infomatiq.jsi.Entry;
+import com.infomatiq.jsi.NeighborIterator;
+import com.infomatiq.jsi.PairVisitor;
 import com.infomatiq.jsi.Point;
-//import com.infomatiq.jsi.PriorityQueue;
 import com.infomatiq.jsi.Rectangle;
 import com.infomatiq.jsi.SpatialIndex;
+import com.infomatiq.jsi.Visitor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.Stack;
 
@@ -46,18 +60,54 @@ import java.util.Stack;
 public class RTree implements SpatialIndex {
 
     private static final String version = "1.0b8";
+    // bulk loading methods
+    public static final String BULK_LOAD_STR = "STR";
+    public static final String BULK_LOAD_HILBERT = "Hilbert";
+    // number of bits per dimension of the cells used by Hilbert bulk loading
+    private static final int HILBERT_BITS = 16;
+    // insertion methods
+    public static final String INSERTION_GUTTMAN = "Guttman";
+    public static final String INSERTION_RSTAR = "RStar";
+    // fraction of the entries of an overflowing node that R* reinserts
+    private static final double RSTAR_REINSERT_FRACTION = 0.3;
+    // number of entries with least area enlargement that R* examines for
+    // overlap enlargement when choosing a leaf
+    private static final int RSTAR_OVERLAP_CANDIDATES = 32;
+    // split strategies
+    public static final String SPLIT_LINEAR = "Linear";
+    public static final String SPLIT_QUADRATIC = "Quadratic";
+    public static final String SPLIT_RSTAR = "RStar";
+    public static final String SPLIT_ANGTAN = "AngTan";
     // parameters of the tree
     private int maxNodeEntries = 50;
     private int minNodeEntries = 20;
-    // map of nodeId -> node object
-    // TODO eliminate this map - it should not be needed. Nodes
-    // can be found by traversing the tree.
-    private HashMap<Rectangle, Node> rectMap = new HashMap<Rectangle, Node>();
+    private String bulkLoadMethod = BULK_LOAD_STR;
+    private String insertionMethod = INSERTION_GUTTMAN;
+    private SplitStrategy splitStrategy = new LinearSplit();
+    // levels at which R* has already reinserted entries during the current
+    // insertion, one bit per level
+    private long reinsertedLevels = 0;
+    // scratch space of leastOverlapEnlargement(), used by one writer at a time
+    private final OverlapScratch overlapScratch = new OverlapScratch();
+    // result heap, branch queue and entry distances of nearestN(), reused by
+    // each thread from query to query
+    private static final ThreadLocal<KnnScratch> knnScratch = new ThreadLocal<KnnScratch>() {
+        @Override
+        protected KnnScratch initialValue() {
+            return new KnnScratch();
+        }
+    };
     // internal consistency checking - set to true if debugging tree corruption
     private final static boolean INTERNAL_CONSISTENCY_CHECKING = true;
     // initialisation
     private Node root = null;
-//    private int size = 0;
+    private int size = 0;
+    // the generation of the tree, advanced by snapshot(). Nodes made in an
+    // earlier generation may be shared with a snapshot, so they are copied
+    // before they are changed.
+    private int generation = 0;
+    // set in snapshots, which cannot be changed
+    private boolean readOnly = false;
     // Enables creation of new nodes
     // Deleted node objects are retained in the nodeMap, 
     // so that they can be reused. Store the IDs of nodes
@@ -90,15 +140,37 @@ public class RTree implements SpatialIndex {
      * <li>MinNodeEntries</li> This specifies the minimum number of entries in a
      * node. The default value is half of the MaxNodeEntries value (rounded
      * down), which is used if the property is not specified or is less than 1.
-     * </ul></p>
+     * <li>BulkLoadMethod</li> This selects how bulkLoad() orders the entries
+     * before packing them into nodes: "STR" (the default) for
+     * Sort-Tile-Recursive, or "Hilbert" to sort the entries along a Hilbert
+     * curve. <li>InsertionMethod</li> This selects how add() places entries:
+     * "Guttman" (the default) for least enlargement, or "RStar" for the
+     * R*-tree of Beckmann et al.: least overlap enlargement when choosing a
+     * leaf, and forced reinsertion of 30% of the entries the first time a node
+     * overflows at each level. <li>SplitStrategy</li> This selects how an
+     * overflowing node is split: "Linear" or "Quadratic" for the splits of
+     * Guttman, "RStar" for the margin based topological split of the R*-tree,
+     * or "AngTan" for the linear split of Ang and Tan. The default is "RStar"
+     * with the RStar insertion method, and "Linear" otherwise. </ul></p>
      *
      * @see com.infomatiq.jsi.SpatialIndex#init(Properties)
      */
     public void init(Properties props) {
+        checkWritable();
         if (props != null) {
 
             maxNodeEntries = Integer.parseInt(props.getProperty("MaxNodeEntries", "0"));
             minNodeEntries = Integer.parseInt(props.getProperty("MinNodeEntries", "0"));
+            bulkLoadMethod = props.getProperty("BulkLoadMethod", BULK_LOAD_STR);
+            if (!bulkLoadMethod.equals(BULK_LOAD_STR) && !bulkLoadMethod.equals(BULK_LOAD_HILBERT)) {
+                throw new IllegalArgumentException("Unknown BulkLoadMethod " + bulkLoadMethod);
+            }
+            insertionMethod = props.getProperty("InsertionMethod", INSERTION_GUTTMAN);
+            if (!insertionMethod.equals(INSERTION_GUTTMAN) && !insertionMethod.equals(INSERTION_RSTAR)) {
+                throw new IllegalArgumentException("Unknown InsertionMethod " + insertionMethod);
+            }
+            splitStrategy = splitStrategy(props.getProperty("SplitStrategy",
+                    insertionMethod.equals(INSERTION_RSTAR) ? SPLIT_RSTAR : SPLIT_LINEAR));
 
             // Obviously a node with less than 2 entries cannot be split.
             // The node splitting algorithm will work with only 2 entries
@@ -110,22 +182,50 @@ public class RTree implements SpatialIndex {
             }
         }
 
-        root = new Node(1, maxNodeEntries, minNodeEntries);
+        root = new Node(1, maxNodeEntries, minNodeEntries, generation);
 
     }
 
+    // Used by init() and OffHeapRTree. The split strategy of the given name.
+    static SplitStrategy splitStrategy(String name) {
+        if (name.equals(SPLIT_LINEAR)) {
+            return new LinearSplit();
+        } else if (name.equals(SPLIT_QUADRATIC)) {
+            return new QuadraticSplit();
+        } else if (name.equals(SPLIT_RSTAR)) {
+            return new RStarSplit();
+        } else if (name.equals(SPLIT_ANGTAN)) {
+            return new AngTanSplit();
+        }
+        throw new IllegalArgumentException("Unknown SplitStrategy " + name);
+    }
+
     /**
-     * @see com.infomatiq.jsi.SpatialIndex#add(Node, int)
+     * Set the strategy used to split overflowing nodes from now on. This
+     * overrides the SplitStrategy property given to init().
      */
-    public void add(Rectangle r) {
+    public void setSplitStrategy(SplitStrategy splitStrategy) {
+        if (splitStrategy == null) {
+            throw new IllegalArgumentException("splitStrategy must not be null");
+        }
+        this.splitStrategy = splitStrategy;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#add(Rectangle)
+     */
+    public Entry add(Rectangle r) {
+        checkWritable();
         Node rect = new Node(r);
         // pass a pararmeter 1 to level by default
+        reinsertedLevels = 0;
         add(rect, 1);
-        rectMap.put(r, rect);
+        size++;
 
         if (INTERNAL_CONSISTENCY_CHECKING) {
             assert checkConsistency();
         }
+        return rect;
     }
 
     /**
@@ -138,7 +238,7 @@ public class RTree implements SpatialIndex {
         // I1 [Find position for new record] Invoke ChooseLeaf to select a 
         // leaf node L in which to place r
 
-        Node n = chooseNode(rect, level);
+        Node n = own(chooseNode(rect, level));
         Node newLeaf = null;
 
         // I2 [Add record to leaf node] If L has room for another entry, 
@@ -147,6 +247,16 @@ public class RTree implements SpatialIndex {
         if (n.size() < maxNodeEntries) {
             n.addEntry(rect);
 
+        } else if (insertionMethod.equals(INSERTION_RSTAR) && n != root
+                && (reinsertedLevels & (1L << level)) == 0) {
+            // R* OT1 [Overflow treatment] If this is the first overflow at
+            // this level during the insertion of one entry, reinsert some of
+            // the entries of L instead of splitting it
+            reinsertedLevels |= 1L << level;
+            n.addEntry(rect);
+            reinsert(n);
+            return;
+
         } else {
             newLeaf = splitNode(n, rect);
         }
@@ -160,7 +270,7 @@ public class RTree implements SpatialIndex {
         // split, create a new root whose children are the two resulting nodes.
         if (newNode != null) {
             Node oldRoot = root;
-            root = new Node(root.getLevel()+1, maxNodeEntries, minNodeEntries);
+            root = new Node(root.getLevel()+1, maxNodeEntries, minNodeEntries, generation);
             root.addEntry(newNode);
             root.addEntry(oldRoot);
 //            assert root.getLevel() == newNode.getLevel() + 1;
@@ -169,30 +279,35 @@ public class RTree implements SpatialIndex {
     }
 
     /**
-     * @see com.infomatiq.jsi.SpatialIndex#delete(Rectangle, int)
+     * Deletes a rectangle, which is found by searching the tree. Rectangles
+     * are matched by identity, not by value. Where the handle returned by
+     * add() is available, delete(Entry) avoids the search.
+     *
+     * @see com.infomatiq.jsi.SpatialIndex#delete(Rectangle)
      */
     public boolean delete(Rectangle r) {
-        // FindLeaf algorithm inlined here. Note the "official" algorithm 
-        // searches all overlapping entries. This seems inefficient to me, 
-        // as an entry is only worth searching if it contains (NOT overlaps)
-        // the rectangle we are searching for.
-        //
-        // Also the algorithm has been changed so that it is not recursive.
-
-        // FL1 [Search subtrees] If root is not a leaf, check each entry 
-        // to determine if it contains r. For each entry found, invoke
-        // findLeaf on the node pointed to by the entry, until r is found or
-        // all entries have been checked.
-
-        Node rect = rectMap.get(r);
+        Node rect = findEntry(r);
         if (rect == null) {
             return false;
         }
+        return delete((Entry) rect);
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#delete(Entry)
+     */
+    public boolean delete(Entry e) {
+        checkWritable();
+        if (!(e instanceof Node) || !isEntryOf((Node) e)) {
+            return false;
+        }
+        Node rect = (Node) e;
+        reinsertedLevels = 0;
         
         assert rect.getLevel() == 0;
-        Node parent = rect.getParent();
+        Node parent = own(rect.getParent());
         parent.deleteEntry(rect);
-        rectMap.remove(r);
+        size--;
         condenseTree(parent);
 
         // shrink the tree if possible (i.e. if root node has exactly one entry,and that 
@@ -210,14 +325,57 @@ public class RTree implements SpatialIndex {
     }
 
     /**
+     * Finds the k nearest rectangles to p, in order of increasing distance,
+     * with the best-first search of Hjaltason and Samet. A single priority
+     * queue holds the nodes still to be visited, keyed by their MINDIST to p,
+     * so the nodes are visited in order of distance and the search stops as
+     * soon as the nearest unvisited node is further than the k-th result.
+     * This visits the fewest nodes of any search that gives the same answer.
+     *
+     * If the k-th and following rectangles have equal distances, they are
+     * all returned.
      *
-     * @param p
-     * @param k
-     * @return
+     * @param p The point for which this method finds the nearest neighbours.
+     * @param k The desired number of rectangles to find.
+     * @return the nearest rectangles, nearest first.
      */
     public ArrayList<Rectangle> nearestN(Point p, int k) {
-        HeapSort<Rectangle> knn = new HeapSort<Rectangle>(HeapSort.SORT_ORDER_DESCENDING);
-        nearestN(p, k, root, knn);
+        assert k > 0;
+        KnnScratch scratch = knnScratch.get();
+        BoundedMaxHeap<Rectangle> knn = scratch.heap;
+        knn.reset(k);
+        BranchQueue queue = scratch.queue;
+        queue.clear();
+        // scratch space for the distances of the entries of one node
+        double[] dist = scratch.dist(maxNodeEntries + 1);
+        double[] q = p.getCoords();
+
+        if (root.size() > 0) {
+            queue.push(root, 0.0);
+        }
+        while (!queue.isEmpty()) {
+            // Stop when the nearest unvisited node cannot hold anything
+            // nearer than the furthest of the k results found so far
+            if (queue.peekKey() > knn.threshold()) {
+                break;
+            }
+            Node n = queue.pop();
+            // compute the distances to all entries in a single pass over the
+            // packed entry MBRs of n, instead of visiting each child
+            n.entryMindistSq(q, dist);
+            if (n.isLeaf()) {
+                for (int i=0; i<n.size(); i++) {
+                    knn.insert(n.get(i), dist[i]);
+                }
+            } else {
+                double furthest = knn.threshold();
+                for (int i=0; i<n.size(); i++) {
+                    if (furthest >= dist[i]) {
+                        queue.push(n.get(i), dist[i]);
+                    }
+                }
+            }
+        }
 
         if (size() >= k) {
             assert knn.size() >= k;
@@ -225,145 +383,691 @@ public class RTree implements SpatialIndex {
             assert knn.size() == size();
         }
 
-        ArrayList<Rectangle> result = new ArrayList<Rectangle>();
-        knn.setSortOrder(HeapSort.SORT_ORDER_ASCENDING);
-        while (knn.size() != 0) {
-            result.add(knn.pop());
+        // release the nodes still queued
+        queue.clear();
+        ArrayList<Rectangle> result = new ArrayList<Rectangle>(knn.size());
+        knn.drainAscending(result);
+        return result;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#nearestNBatch(List, int)
+     */
+    public ArrayList<ArrayList<Rectangle>> nearestNBatch(List<Point> points, int k) {
+        ArrayList<ArrayList<Rectangle>> result = new ArrayList<ArrayList<Rectangle>>(points.size());
+        for (Point p : points) {
+            result.add(nearestN(p, k));
         }
         return result;
     }
 
-    private void nearestN(Point p, int k, Node n, HeapSort<Rectangle> knn) {
+    /**
+     * Used by nearestN(). The scratch space of one thread, kept from query to
+     * query so that a search allocates nothing but its result. The distance
+     * array only grows when a tree with larger nodes is searched.
+     */
+    private static class KnnScratch {
+
+        final BoundedMaxHeap<Rectangle> heap = new BoundedMaxHeap<Rectangle>(1);
+        final BranchQueue queue = new BranchQueue(64);
+        private double[] dist = new double[0];
 
+        double[] dist(int length) {
+            if (dist.length < length) {
+                dist = new double[length];
+            }
+            return dist;
+        }
+    }
+
+    /**
+     * Used by leastOverlapEnlargement(). The scratch space of the R* choice
+     * of subtree, kept from insertion to insertion, so that choosing a leaf
+     * allocates nothing. The arrays only grow when the tree has larger nodes.
+     */
+    private static class OverlapScratch {
+
+        double[] enlargements = new double[0];
+        int[] candidates = new int[0];
+        double[] before = new double[0];
+        double[] after = new double[0];
+
+        void ensure(int length) {
+            if (enlargements.length < length) {
+                enlargements = new double[length];
+                candidates = new int[length];
+                before = new double[length];
+                after = new double[length];
+            }
+        }
+    }
+
+    /**
+     * Finds the k nearest entries of every entry of the tree, as nearestN()
+     * would for each of them in turn, with a single dual traversal of the
+     * tree against itself. The nodes of the tree are visited once each on
+     * the query side, together with a list of the nodes at the same level
+     * which may hold neighbours of any of their entries. The list of a child
+     * is made from the children of its parent's list, pruned by a bound on
+     * the k-distance shared by all the entries under the child: the least
+     * MAXDIST within which at least k entries are sure to lie. At the leaves
+     * the remaining candidate leaves are searched nearest first, each one
+     * only for the entries to which it is close enough.
+     *
+     * Distances between entries are MINDIST between their rectangles, which
+     * is the Euclidean distance when the entries are points.
+     *
+     * @param k The desired number of neighbours of each entry.
+     * @return the neighbours of every entry, nearest first.
+     */
+    public KnnTable allKnn(int k) {
         assert k > 0;
+        AllKnnSearch search = new AllKnnSearch(k);
+        if (root.size() > 0) {
+            search.join(root, new Node[] {root}, new double[] {0.0}, 1);
+        }
+        return search.table();
+    }
 
-        if (!n.isLeaf()) {
+    /**
+     * Used by allKnn().
+     */
+    private class AllKnnSearch {
+
+        private final int k;
+        // the number of each entry. The entries are numbered in depth first
+        // order.
+        private final IdentityHashMap<Rectangle, Integer> ids = new IdentityHashMap<Rectangle, Integer>();
+        private final Rectangle[] entries;
+        // the table, filled one row at a time
+        private final int[] offsets;
+        private int[] neighbours;
+        private double[] distances;
+        private int rows = 0;
+        // scratch space
+        private final BoundedMaxHeap<Rectangle>[] heaps;
+        private final BranchQueue queue = new BranchQueue(maxNodeEntries + 1);
+        private final double[] dist = new double[maxNodeEntries + 1];
+        private final double[] entryDist = new double[maxNodeEntries + 1];
+        private final ArrayList<Rectangle> knn = new ArrayList<Rectangle>();
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        AllKnnSearch(int k) {
+            this.k = k;
+            entries = new Rectangle[size()];
+            if (root.size() > 0) {
+                int count = number(root, 0);
+                assert count == size();
+            }
+            offsets = new int[size() + 1];
+            neighbours = new int[size() * k];
+            distances = new double[size() * k];
+            heaps = new BoundedMaxHeap[maxNodeEntries + 1];
+            for (int i = 0; i < heaps.length; i++) {
+                heaps[i] = new BoundedMaxHeap<Rectangle>(k);
+            }
+        }
 
-            // Generate Active Branch List, sort ABL based on ordering metric values
-            HeapSort<Node> ABL = new HeapSort<Node>(HeapSort.SORT_ORDER_DESCENDING);
-            genBranchList(p, n, ABL);
+        // number the entries under n, starting from first, and return the
+        // number after the last of them
+        private int number(Node n, int first) {
+            int next = first;
+            if (n.isLeaf()) {
+                for (int i = 0; i < n.size(); i++) {
+                    ids.put(n.get(i), next);
+                    entries[next++] = n.get(i);
+                }
+            } else {
+                for (int i = 0; i < n.size(); i++) {
+                    next = number(n.get(i), next);
+                }
+            }
+            return next;
+        }
 
-            // Perform Downward Pruning (may discard all branches)
-            pruneBranchList(k, knn, ABL);
+        /**
+         * Find the neighbours of the entries under q, which lie in the nodes
+         * of candidates. The candidates are at the level of q, ordered by
+         * their MINDIST from q, given in keys.
+         */
+        void join(Node q, Node[] candidates, double[] keys, int count) {
+            if (q.isLeaf()) {
+                joinLeaf(q, candidates, keys, count);
+                return;
+            }
+            for (int c = 0; c < q.size(); c++) {
+                Node child = q.get(c);
+
+                // take the candidates' children in order of MAXDIST until
+                // they hold k entries; no entry under child can have its
+                // k-th neighbour further away than that
+                queue.clear();
+                for (int j = 0; j < count; j++) {
+                    Node n = candidates[j];
+                    n.entryMaxdistSq(child, dist);
+                    for (int i = 0; i < n.size(); i++) {
+                        queue.push(n.get(i), dist[i]);
+                    }
+                }
+                double bound = Double.POSITIVE_INFINITY;
+                int held = 0;
+                while (!queue.isEmpty()) {
+                    double key = queue.peekKey();
+                    held += queue.pop().getTotal();
+                    if (held >= k) {
+                        bound = key;
+                        break;
+                    }
+                }
 
-            // Iterate through the Active Branch List
-            while (ABL.size() != 0) {
-                // Recursively visit child nodes
-                ABL.setSortOrder(HeapSort.SORT_ORDER_ASCENDING);
-                Node child = ABL.pop();
-                nearestN(p, k, child, knn);
-                // Perform Upward Pruning
-                ABL.setSortOrder(HeapSort.SORT_ORDER_DESCENDING);
-                pruneBranchList(k, knn, ABL);
+                queue.clear();
+                for (int j = 0; j < count; j++) {
+                    Node n = candidates[j];
+                    n.entryMindistSq(child, dist);
+                    for (int i = 0; i < n.size(); i++) {
+                        if (dist[i] <= bound) {
+                            queue.push(n.get(i), dist[i]);
+                        }
+                    }
+                }
+                int childCount = queue.size();
+                Node[] childCandidates = new Node[childCount];
+                double[] childKeys = new double[childCount];
+                for (int j = 0; j < childCount; j++) {
+                    childKeys[j] = queue.peekKey();
+                    childCandidates[j] = queue.pop();
+                }
+                join(child, childCandidates, childKeys, childCount);
             }
-        } else {
-            double furthest = Double.MAX_VALUE;
-            if (knn.size() >= k) {
-                furthest = knn.gettopval();
+        }
+
+        private void joinLeaf(Node q, Node[] candidates, double[] keys, int count) {
+            // the entries of q itself first, so that every heap starts with
+            // a tight bound
+            for (int a = 0; a < q.size(); a++) {
+                heaps[a].reset(k);
+                q.entryMindistSq(q.get(a), dist);
+                for (int i = 0; i < q.size(); i++) {
+                    heaps[a].insert(q.get(i), dist[i]);
+                }
             }
-            for (int i=0; i<n.size(); i++) {
-                // use Node.MINDIST(Point) instead of Point.MINDIST(Node)
-                // to improve performance
-                double rectdist = n.get(i).MINDIST(p);
-                if (furthest >= rectdist) {
-                    knn.insert(n.get(i), rectdist);
+            for (int j = 0; j < count; j++) {
+                double furthest = 0.0;
+                for (int a = 0; a < q.size(); a++) {
+                    furthest = Math.max(furthest, heaps[a].threshold());
+                }
+                // the candidates are in order of distance, so none of the
+                // rest can hold a neighbour either
+                if (keys[j] > furthest) {
+                    break;
+                }
+                Node n = candidates[j];
+                if (n == q) {
+                    continue;
                 }
+                q.entryMindistSq(n, entryDist);
+                for (int a = 0; a < q.size(); a++) {
+                    BoundedMaxHeap<Rectangle> heap = heaps[a];
+                    if (entryDist[a] > heap.threshold()) {
+                        continue;
+                    }
+                    n.entryMindistSq(q.get(a), dist);
+                    for (int i = 0; i < n.size(); i++) {
+                        heap.insert(n.get(i), dist[i]);
+                    }
+                }
+            }
+
+            assert rows == ids.get(q.get(0));
+            for (int a = 0; a < q.size(); a++) {
+                Node entry = q.get(a);
+                knn.clear();
+                heaps[a].drainAscending(knn);
+                assert knn.size() >= Math.min(k, size());
+                int offset = offsets[rows];
+                if (offset + knn.size() > neighbours.length) {
+                    int length = Math.max(neighbours.length * 2, offset + knn.size());
+                    neighbours = Arrays.copyOf(neighbours, length);
+                    distances = Arrays.copyOf(distances, length);
+                }
+                for (Rectangle nbr : knn) {
+                    neighbours[offset] = ids.get(nbr);
+                    distances[offset] = entry.getdis(nbr);
+                    offset++;
+                }
+                rows++;
+                offsets[rows] = offset;
             }
-            knn.prune(k);
         }
-    }
 
-    private void genBranchList(Point p, Node n, HeapSort<Node> ABL) {
-        for (int i=0; i<n.size(); i++) {
-            // use Node.MINDIST(Point) instead of Point.MINDIST(Node)
-            // to improve performance
-            Double dist = n.get(i).MINDIST(p);
-            ABL.insert(n.get(i), dist);
+        KnnTable table() {
+            assert rows == entries.length;
+            return new KnnTable(entries, offsets, neighbours, distances);
         }
     }
 
-    private void pruneBranchList(int k, HeapSort<Rectangle> knn, HeapSort<Node> ABL) {
-        if (knn.size() >= k) {
-            Double maxdist = knn.gettopval();
-            while (ABL.size() > 0) {
-                if (ABL.gettopval() > maxdist) {
-                    ABL.pop();
-                } else {
-                    break;
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#nearestIterator(Point)
+     */
+    public NeighborIterator nearestIterator(Point p) {
+        return new NearestIterator(p);
+    }
+
+    /**
+     * Distance browsing (Hjaltason and Samet). This is the best-first search
+     * of nearestN(), except that the leaf entries go into the same priority
+     * queue as the nodes. Whenever a leaf entry reaches the head of the
+     * queue, nothing left in the queue can be nearer, so it is the next
+     * neighbour.
+     */
+    private class NearestIterator implements NeighborIterator {
+
+        private final double[] q;
+        private final BranchQueue queue = new BranchQueue(maxNodeEntries + 1);
+        // scratch space for the distances of the entries of one node
+        private final double[] dist = new double[maxNodeEntries + 1];
+        private double distance = Double.NaN;
+
+        NearestIterator(Point p) {
+            q = p.getCoords();
+            if (root.size() > 0) {
+                queue.push(root, 0.0);
+            }
+        }
+
+        // expand nodes until a leaf entry is at the head of the queue
+        public boolean hasNext() {
+            while (!queue.isEmpty()) {
+                Node n = queue.peek();
+                if (n.getLevel() == 0) {
+                    return true;
                 }
+                queue.pop();
+                n.entryMindistSq(q, dist);
+                for (int i=0; i<n.size(); i++) {
+                    queue.push(n.get(i), dist[i]);
+                }
+            }
+            return false;
+        }
+
+        public Rectangle next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
+            distance = Math.sqrt(queue.peekKey());
+            return queue.pop().getRef();
+        }
+
+        public double distance() {
+            return distance;
         }
 
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 
     /**
-     * @see com.infomatiq.jsi.SpatialIndex#intersects(Rectangle, TIntProcedure)
+     * @see com.infomatiq.jsi.SpatialIndex#intersects(Rectangle)
      */
     public boolean intersects(Rectangle r) {
-        return root.intersects(r);
+        // stop at the first rectangle found
+        return !intersects(r, new Visitor() {
+            public boolean visit(Rectangle found) {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#intersects(Rectangle, Visitor)
+     */
+    public boolean intersects(Rectangle r, Visitor v) {
+        // Depth-First Traversal, as in contains()
+        Stack<Node> parent = new Stack<Node>();
+        // scratch space for the intersection tests of the entries of one node
+        boolean[] mask = new boolean[maxNodeEntries + 1];
+
+        // shortcut - if the passed rectangle does not intersect the MBR of
+        // the root node, there is nothing to find
+        if (root.size() > 0 && root.intersects(r)) {
+            parent.push(root);
+        }
+
+        while (parent.size() > 0) {
+            Node n = parent.pop();
+
+            // test every entry in one pass to check if it intersects the
+            // passed rectangle. Children are pushed in reverse, so they are
+            // searched in order.
+            n.entryIntersects(r, mask);
+            if (!n.isLeaf()) {
+                for (int i = n.size() - 1; i >= 0; i--) {
+                    if (mask[i]) {
+                        parent.push(n.get(i));
+                    }
+                }
+            } else {
+                for (int i = 0; i < n.size(); i++) {
+                    if (mask[i] && !v.visit(n.get(i).getRef())) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#withinDistance(Point, double, Visitor)
+     */
+    public boolean withinDistance(Point p, double distance, Visitor v) {
+        if (distance < 0.0) {
+            return true;
+        }
+        // compare squared distances, as computed by the kernels
+        double distanceSq = distance * distance;
+        double[] q = p.getCoords();
+        Stack<Node> parent = new Stack<Node>();
+        // scratch space for the distances of the entries of one node
+        double[] dist = new double[maxNodeEntries + 1];
+
+        if (root.size() > 0) {
+            parent.push(root);
+        }
+
+        while (parent.size() > 0) {
+            Node n = parent.pop();
+
+            // compute the distances to all entries in a single pass over the
+            // packed entry MBRs of n. A subtree is only worth searching if
+            // its MBR is within the distance.
+            n.entryMindistSq(q, dist);
+            if (!n.isLeaf()) {
+                for (int i = n.size() - 1; i >= 0; i--) {
+                    if (dist[i] <= distanceSq) {
+                        parent.push(n.get(i));
+                    }
+                }
+            } else {
+                for (int i = 0; i < n.size(); i++) {
+                    if (dist[i] <= distanceSq && !v.visit(n.get(i).getRef())) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds all the pairs of intersecting rectangles, one from this tree and
+     * one from other.
+     *
+     * @see #join(RTree, double, PairVisitor)
+     */
+    public boolean join(RTree other, PairVisitor v) {
+        return join(other, 0.0, v);
     }
 
     /**
-     * @see com.infomatiq.jsi.SpatialIndex#contains(Rectangle, TIntProcedure)
+     * Finds all the pairs of rectangles, one from this tree and one from
+     * other, that are within the given distance of each other. A distance of
+     * zero finds the pairs that intersect. Each pair is passed to v as soon as
+     * it is found.
+     *
+     * The two trees are searched together, depth first, one pair of nodes at
+     * a time, so each node of either tree is read once for every node of the
+     * other that is close to it, rather than once per query. Where one tree
+     * is taller, only its nodes are descended until the levels match. Within
+     * a pair of nodes at the same level, the entries close to the other node
+     * are sorted along one axis and swept, so only the entries that overlap
+     * along that axis are compared.
+     *
+     * If other is this tree, each pair is found in both orders, and each
+     * rectangle is paired with itself.
+     *
+     * @param other The tree to join with this tree.
+     * @param distance The greatest distance between the rectangles of a pair.
+     * @param v The visitor to pass each pair to; (r, s) has r from this tree
+     * and s from other.
+     *
+     * @return false if the join was stopped by the visitor, true otherwise.
+     */
+    public boolean join(RTree other, double distance, PairVisitor v) {
+        if (distance < 0.0 || root.size() == 0 || other.root.size() == 0) {
+            return true;
+        }
+        assert getdim() == other.getdim();
+        double distanceSq = distance * distance;
+        // pairs of nodes still to join, pushed and popped two at a time
+        Stack<Node> parent = new Stack<Node>();
+        // scratch space for the entries of each node near the other node,
+        // in sweep order
+        int[] a = new int[maxNodeEntries + 1];
+        int[] b = new int[other.maxNodeEntries + 1];
+        double[] lowA = new double[a.length];
+        double[] lowB = new double[b.length];
+        double[] dist = new double[Math.max(a.length, b.length)];
+
+        parent.push(root);
+        parent.push(other.root);
+
+        while (parent.size() > 0) {
+            Node m = parent.pop();
+            Node n = parent.pop();
+
+            // descend the taller of the two trees first, until the nodes of
+            // a pair are at the same level
+            if (n.getLevel() > m.getLevel()) {
+                n.entryMindistSq(m, dist);
+                for (int i = n.size() - 1; i >= 0; i--) {
+                    if (dist[i] <= distanceSq) {
+                        parent.push(n.get(i));
+                        parent.push(m);
+                    }
+                }
+                continue;
+            }
+            if (m.getLevel() > n.getLevel()) {
+                m.entryMindistSq(n, dist);
+                for (int i = m.size() - 1; i >= 0; i--) {
+                    if (dist[i] <= distanceSq) {
+                        parent.push(n);
+                        parent.push(m.get(i));
+                    }
+                }
+                continue;
+            }
+
+            // sweep along the axis in which n is widest. Only the entries
+            // within the distance of the other node can be in a pair.
+            int axis = 0;
+            for (int d = 1; d < n.getdim(); d++) {
+                if (n.getWidth(d) > n.getWidth(axis)) {
+                    axis = d;
+                }
+            }
+            int countA = sweepOrder(n, m, distanceSq, axis, a, lowA, dist);
+            int countB = sweepOrder(m, n, distanceSq, axis, b, lowB, dist);
+
+            int i = 0;
+            int j = 0;
+            while (i < countA && j < countB) {
+                if (lowA[i] <= lowB[j]) {
+                    // pair entry i of n with the entries of m which start
+                    // before it ends
+                    Node r = n.get(a[i]);
+                    double high = r.getMax(axis) + distance;
+                    for (int k = j; k < countB && lowB[k] <= high; k++) {
+                        if (!joinEntries(r, m.get(b[k]), distanceSq, parent, v)) {
+                            return false;
+                        }
+                    }
+                    i++;
+                } else {
+                    Node s = m.get(b[j]);
+                    double high = s.getMax(axis) + distance;
+                    for (int k = i; k < countA && lowA[k] <= high; k++) {
+                        if (!joinEntries(n.get(a[k]), s, distanceSq, parent, v)) {
+                            return false;
+                        }
+                    }
+                    j++;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Used by join(). Write to index the entries of n within the distance of
+    // other, in order of their lower bound along axis, and the lower bounds
+    // to low. Returns the number of entries written.
+    private static int sweepOrder(Node n, Node other, double distanceSq, int axis,
+            int[] index, double[] low, double[] dist) {
+        n.entryMindistSq(other, dist);
+        int count = 0;
+        for (int i = 0; i < n.size(); i++) {
+            if (dist[i] > distanceSq) {
+                continue;
+            }
+            // insertion sort, as a node has few entries
+            double key = n.getEntryMin(i, axis);
+            int k = count++;
+            while (k > 0 && low[k - 1] > key) {
+                low[k] = low[k - 1];
+                index[k] = index[k - 1];
+                k--;
+            }
+            low[k] = key;
+            index[k] = i;
+        }
+        return count;
+    }
+
+    // Used by join(). Test a pair of entries which overlap along the sweep
+    // axis. A pair of leaf entries is passed to the visitor, and a pair of
+    // nodes is pushed to be joined later.
+    private static boolean joinEntries(Node r, Node s, double distanceSq,
+            Stack<Node> parent, PairVisitor v) {
+        if (r.mindistSq(s) > distanceSq) {
+            return true;
+        }
+        if (r.getLevel() == 0) {
+            return v.visit(r.getRef(), s.getRef());
+        }
+        parent.push(r);
+        parent.push(s);
+        return true;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#contains(Rectangle)
      */
     public ArrayList<Rectangle> contains(Rectangle r) {
+        final ArrayList<Rectangle> result = new ArrayList<Rectangle>();
+        contains(r, new Visitor() {
+            public boolean visit(Rectangle found) {
+                result.add(found);
+                return true;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#contains(Rectangle, Visitor)
+     */
+    public boolean contains(Rectangle r, Visitor v) {
         // find all rectangles in the tree that are contained by the passed rectangle
         // written to be non-recursive (should model other searches on this?)
         // Depth-First Traversal
-        ArrayList<Rectangle> result = new ArrayList<Rectangle>();
         Stack<Node> parent = new Stack<Node>();
-        Stack<Integer> child = new Stack<Integer>();
-        parent.push(root);
-        child.push(0);
-
+        // scratch space for the intersection tests of the entries of one node
+        boolean[] mask = new boolean[maxNodeEntries + 1];
 
-        // TODO: possible shortcut here - could test for intersection with the 
-        // MBR of the root node. If no intersection, return immediately.
+        // shortcut - if the passed rectangle does not intersect the MBR of
+        // the root node, there is nothing to find
+        if (root.size() > 0 && root.intersects(r)) {
+            parent.push(root);
+        }
 
         while (parent.size() > 0) {
-            Node n = parent.peek();
+            Node n = parent.pop();
 
             if (!n.isLeaf()) {
-                // go through every entry in the index node to check
+                // test every entry in the index node in one pass to check
                 // if it intersects the passed rectangle. If so, it 
-                // could contain entries that are contained.
-                boolean intersects = false;
-                for (int i = child.peek(); i < n.size(); i++) {
-                    if (r.intersects(n.get(i))) {
+                // could contain entries that are contained. Children are
+                // pushed in reverse, so they are searched in order.
+                n.entryIntersects(r, mask);
+                for (int i = n.size() - 1; i >= 0; i--) {
+                    if (mask[i]) {
                         parent.push(n.get(i));
-                        child.pop();
-                        child.push(i); // this becomes the start index when the child has been searched
-                        child.push(0);
-                        intersects = true;
-                        break; // ie go to next iteration of while()
                     }
                 }
-                if (intersects) {
-                    continue;
-                }
             } else {
-                // go through every entry in the leaf to check if 
+                // test every entry in the leaf in one pass to check if 
                 // it is contained by the passed rectangle
+                n.entryContainedBy(r, mask);
                 for (int i = 0; i < n.size(); i++) {
-                    if (r.contains(n.get(i))) {
-                        result.add(n.get(i).getRef());
+                    if (mask[i] && !v.visit(n.get(i).getRef())) {
+                        return false;
                     }
                 }
             }
-            parent.pop();
-            child.pop();
         }
-        return result;
+        return true;
     }
 
     /**
-     * @see com.infomatiq.jsi.SpatialIndex#contains(Rectangle, TIntProcedure)
+     * Each node holds the number of leaf entries in its subtree, so the
+     * entries of a subtree whose MBR is contained by r are counted all at
+     * once. Only the subtrees which straddle the edge of r are descended, and
+     * no rectangle is visited.
+     *
+     * @see com.infomatiq.jsi.SpatialIndex#count(Rectangle)
      */
+    public int count(Rectangle r) {
+        int result = 0;
+        Stack<Node> parent = new Stack<Node>();
+        // scratch space for the tests of the entries of one node
+        boolean[] contained = new boolean[maxNodeEntries + 1];
+        boolean[] intersects = new boolean[maxNodeEntries + 1];
+
+        if (root.size() > 0 && root.intersects(r)) {
+            parent.push(root);
+        }
+
+        while (parent.size() > 0) {
+            Node n = parent.pop();
+            n.entryContainedBy(r, contained);
+            if (n.isLeaf()) {
+                for (int i = 0; i < n.size(); i++) {
+                    if (contained[i]) {
+                        result++;
+                    }
+                }
+            } else {
+                n.entryIntersects(r, intersects);
+                for (int i = 0; i < n.size(); i++) {
+                    if (contained[i]) {
+                        result += n.get(i).getTotal();
+                    } else if (intersects[i]) {
+                        parent.push(n.get(i));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * @see com.infomatiq.jsi.SpatialIndex#size()
      */
     public int size() {
-        return rectMap.size();
+        return size;
     }
 
     /**
@@ -392,238 +1096,515 @@ public class RTree implements SpatialIndex {
     // end of SpatialIndex methods
     //-------------------------------------------------------------------------
 
-
-
     /**
-     * Split a node. Algorithm is taken pretty much verbatim from Guttman's
-     * original paper.
+     * Returns a read only view of the tree as it is now, in constant time.
+     * Nothing is copied when the snapshot is taken. Instead, the nodes are
+     * shared, and from then on this tree copies each node before changing it,
+     * together with the nodes on the path from it up to the root ("path
+     * copying"). So a snapshot is never changed, and any number of threads
+     * may query it with no locking while this tree goes on being changed by
+     * one thread. The snapshot must be handed to other threads safely, for
+     * instance through a volatile field or a concurrent queue.
      *
-     * @return new node object.
+     * The queries of a snapshot find the same rectangles as the queries of
+     * the tree at the time it was taken. The rectangles are the same objects
+     * in both, so a rectangle found in a snapshot may still be passed to
+     * delete() on the tree. A snapshot cannot be changed: add(), delete(),
+     * bulkLoad() and init() throw UnsupportedOperationException. The nodes
+     * of a snapshot are garbage collected once the snapshot is no longer
+     * used and the tree no longer shares them.
+     *
+     * @return a snapshot of the tree; a snapshot returns itself.
      */
-    private Node splitNode(Node n, Node rect) {
-        // [Pick first entry for each group] Apply algorithm pickSeeds to 
-        // choose two entries to be the first elements of the groups. Assign
-        // each to a group.
-        // The parameter newId stands for the id of the new rectange
-
-//        System.arraycopy(initialEntryStatus, 0, entryStatus, 0, maxNodeEntries);
+    public RTree snapshot() {
+        if (readOnly) {
+            return this;
+        }
+        RTree snapshot = new RTree(this);
+        generation++;
+        return snapshot;
+    }
 
-        assert n.size() == maxNodeEntries : "Error:Not enough entires before spliting a Node!";
+    // Used by snapshot(). A read only view of tree, sharing its nodes.
+    private RTree(RTree tree) {
+        maxNodeEntries = tree.maxNodeEntries;
+        minNodeEntries = tree.minNodeEntries;
+        bulkLoadMethod = tree.bulkLoadMethod;
+        insertionMethod = tree.insertionMethod;
+        splitStrategy = tree.splitStrategy;
+        root = tree.root;
+        size = tree.size;
+        readOnly = true;
+    }
 
-        Node newNode = new Node(n.getLevel(), maxNodeEntries, minNodeEntries);
+    // Used by PagedRTree and OffHeapRTree to copy the tree.
+    Node getRoot() {
+        return root;
+    }
 
-        // for the purposes of picking seeds, take the MBR of the node to include
-        // the new rectangle as well.
-        n.enlarge(rect);
+    int getMaxNodeEntries() {
+        return maxNodeEntries;
+    }
 
-        ArrayList<Node> seed = pickSeeds(n, rect);
-        Node highestLowIndex = seed.get(0);
-        Node lowestHighIndex = seed.get(1);
+    /**
+     * Returns true if this tree is a snapshot, which cannot be changed.
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
 
-        ArrayList<Node> tempentries = n.copyEntry();
-        tempentries.add(rect);
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("RTree snapshots are read only");
+        }
+    }
 
-        n.clearEntry();
+    /**
+     * Used by add() and delete() before changing n. If n was made before the
+     * last snapshot, replace it in the tree by a copy, and return the copy.
+     * The parent of n is copied first in the same way, so the path from n to
+     * the root is made of new nodes, while the old ones stay as they were for
+     * the snapshots which share them.
+     */
+    private Node own(Node n) {
+        if (n.getGeneration() == generation) {
+            // a node of this generation has only parents of this generation
+            return n;
+        }
+        Node copy;
+        if (n == root) {
+            copy = new Node(n, generation);
+            root = copy;
+        } else {
+            Node parent = own(n.getParent());
+            copy = new Node(n, generation);
+            parent.replaceEntry(n, copy);
+        }
+        return copy;
+    }
 
-        // highestLowIndex is the seed for the new node.
-        // lowestHighIndex is the seed for the original node. 
+    /**
+     * Build the tree bottom-up from the passed rectangles, replacing any
+     * entries already in the tree. Entries are ordered with Sort-Tile-Recursive
+     * (Leutenegger et al.), generalized to N dimensions, and packed into full
+     * nodes one level at a time. This is much faster than calling add() for
+     * each rectangle, and the resulting nodes are fuller and overlap less.
+     *
+     * If the BulkLoadMethod property is "Hilbert", the entries are instead
+     * sorted once by the Hilbert index of their centre, and each level is
+     * packed in that order (Kamel and Faloutsos).
+     *
+     * @param rects The rectangles to index
+     *
+     * @return the handles of the new entries, in the iteration order of rects
+     */
+    public ArrayList<Entry> bulkLoad(Collection<Rectangle> rects) {
+        checkWritable();
+        root = new Node(1, maxNodeEntries, minNodeEntries, generation);
+        size = rects.size();
+        ArrayList<Entry> handles = new ArrayList<Entry>(rects.size());
+        if (rects.isEmpty()) {
+            return handles;
+        }
 
-        if (highestLowIndex == null) {
-            newNode.addEntry(tempentries.get(tempentries.size()-1));
-            tempentries.remove(tempentries.get(tempentries.size()-1));
-        } else {
-            newNode.addEntry(highestLowIndex);
-            tempentries.remove(highestLowIndex);
+        ArrayList<Node> nodes = new ArrayList<Node>(rects.size());
+        for (Rectangle r : rects) {
+            Node rect = new Node(r);
+            nodes.add(rect);
+            handles.add(rect);
         }
-        if (lowestHighIndex == null) {
-            n.addEntry(tempentries.get(tempentries.size() - 1));
-            tempentries.remove(tempentries.get(tempentries.size() - 1));
-        } else {
-            n.addEntry(lowestHighIndex);
-            tempentries.remove(lowestHighIndex);
+        int dim = nodes.get(0).getdim();
+        if (bulkLoadMethod.equals(BULK_LOAD_HILBERT)) {
+            sortHilbert(nodes);
         }
-        
-        assert tempentries.size() == this.maxNodeEntries + 1 - 2;
-
-        // [Check if done] If all entries have been assigned, stop. If one
-        // group has so few entries that all the rest must be assigned to it in 
-        // order for it to have the minimum number m, assign them and stop. 
-//        while (n.size() + newNode.size() < maxNodeEntries + 1) {
-        while (tempentries.size() > 0) {
-            if (maxNodeEntries + 1 - newNode.size() == minNodeEntries) {
-                // assign all remaining entries to original node
-                while (tempentries.size() > 0) {
-                    n.addEntry(tempentries.get(0));
-                    tempentries.remove(0);
-                }
-                break;
-            }
 
-            if (maxNodeEntries + 1 - n.size() == minNodeEntries) {
-                // assign all remaining entries to new node
-                while (tempentries.size() > 0) {
-                    newNode.addEntry(tempentries.get(0));
-                    tempentries.remove(0);
-                }
+        // pack each level into the nodes of the level above, until a single
+        // node is left to become the root
+        int level = 1;
+        while (true) {
+            if (bulkLoadMethod.equals(BULK_LOAD_STR)) {
+                sortTileRecursive(nodes, 0, dim);
+            }
+            nodes = packLevel(nodes, level);
+            if (nodes.size() == 1) {
                 break;
             }
+            level++;
+        }
+        root = nodes.get(0);
 
-            // [Select entry to assign] Invoke algorithm pickNext to choose the
-            // next entry to assign. Add it to the group whose covering rectangle 
-            // will have to be enlarged least to accommodate it. Resolve ties
-            // by adding the entry to the group with smaller area, then to the 
-            // the one with fewer entries, then to either. Repeat from S2
-            ArrayList<Node> next = pickNext(n, newNode, tempentries);
+        if (INTERNAL_CONSISTENCY_CHECKING) {
+            assert checkConsistency();
+        }
+        return handles;
+    }
 
-            Node nextNode = next.get(0);
-            Node nextEntry = next.get(1);
-            nextNode.addEntry(nextEntry);
-            tempentries.remove(nextEntry);
+    /**
+     * Used by bulkLoad(). Orders the nodes so that each consecutive run of
+     * maxNodeEntries nodes forms a tile: sort by the centre along dimension d,
+     * cut into slabs, and recurse into each slab with dimension d+1.
+     */
+    private void sortTileRecursive(List<Node> nodes, int d, int dim) {
+        // the order within a single node does not matter
+        if (nodes.size() <= maxNodeEntries) {
+            return;
+        }
+        Collections.sort(nodes, new CentreComparator(d));
+        if (d == dim - 1) {
+            return;
+        }
 
+        // P nodes will be made out of these entries, so cut them into
+        // S = ceil(P^(1/(dim-d))) slabs, each a whole number of nodes
+        int pages = (nodes.size() + maxNodeEntries - 1) / maxNodeEntries;
+        int slabs = (int) Math.ceil(Math.pow(pages, 1.0 / (dim - d)));
+        int slabSize = maxNodeEntries * ((pages + slabs - 1) / slabs);
+        for (int from = 0; from < nodes.size(); from += slabSize) {
+            int to = Math.min(from + slabSize, nodes.size());
+            sortTileRecursive(nodes.subList(from, to), d + 1, dim);
         }
-        assert n.size() + newNode.size() == maxNodeEntries + 1 : "Error:Node lost while spliting a Node!";
-        return newNode;
     }
 
     /**
-     * Pick the seeds used to split a node. Select two entries to be the first
-     * elements of the groups
-     */
-    private ArrayList<Node> pickSeeds(Node n, Node rect) {
-        // Find extreme rectangles along all dimension. Along each dimension,
-        // find the entry whose rectangle has the highest low side, and the one 
-        // with the lowest high side. Record the separation.
-        Double maxNormalizedSeparation = -1.0; // initialize to -1 so that even overlapping rectangles will be considered for the seeds
-        Double normalizedSeparation = -1.0;
-        Integer highestLowIndex = -1;
-        Integer lowestHighIndex = -1;
-        Point s = rect.copys();
-        Point t = rect.copyt();
-
-        for (int i=0; i<s.getdim(); i++) {
-            Double tempHighestLow = s.get(i);
-            int tempHighestLowIndex = -1;
-            Double tempLowestHigh = t.get(i);
-            int tempLowestHighIndex = -1;
-            Double len = n.copyt().get(i) - n.copys().get(i);
-
-            for (int c = 0; c < n.size(); c++) {
-                Double tempLow = n.get(c).copys().get(i);
-                Double tempHigh = n.get(c).copyt().get(i);
-                if (tempLow >= tempHighestLow) {
-                    tempHighestLow = tempLow;
-                    tempHighestLowIndex = c;
-                }  // ensure that the same index cannot be both lowestHigh and highestLow
-                if (tempHigh <= tempLowestHigh) {
-                    tempLowestHigh = tempHigh;
-                    tempLowestHighIndex = c;
-                }
-
-                // PS2 [Adjust for shape of the rectangle cluster] Normalize the separations
-                // by dividing by the widths of the entire set along the corresponding
-                // dimension
-
-                if (len == 0) {
-                    normalizedSeparation = 1.0;
-                } else {
-                    normalizedSeparation = (tempHighestLow - tempLowestHigh) / len;
-                }
+     * Used by bulkLoad(). Orders the nodes by the Hilbert index of their
+     * centre, on a grid of 2^HILBERT_BITS cells per dimension spanning the
+     * centres of all the nodes.
+     */
+    private void sortHilbert(List<Node> nodes) {
+        int dim = nodes.get(0).getdim();
+        double[] lo = new double[dim];
+        double[] hi = new double[dim];
+        Arrays.fill(lo, Double.POSITIVE_INFINITY);
+        Arrays.fill(hi, Double.NEGATIVE_INFINITY);
+        for (Node n : nodes) {
+            for (int d = 0; d < dim; d++) {
+                double centre = (n.getMin(d) + n.getMax(d)) / 2;
+                lo[d] = Math.min(lo[d], centre);
+                hi[d] = Math.max(hi[d], centre);
+            }
+        }
 
+        long cells = (1L << HILBERT_BITS) - 1;
+        ArrayList<HilbertEntry> keyed = new ArrayList<HilbertEntry>(nodes.size());
+        for (Node n : nodes) {
+            long[] cell = new long[dim];
+            for (int d = 0; d < dim; d++) {
+                if (hi[d] > lo[d]) {
+                    double centre = (n.getMin(d) + n.getMax(d)) / 2;
+                    cell[d] = (long) ((centre - lo[d]) / (hi[d] - lo[d]) * cells);
+                }
             }
+            keyed.add(new HilbertEntry(n, HilbertCurve.index(cell, HILBERT_BITS)));
+        }
+        Collections.sort(keyed);
+        for (int i = 0; i < keyed.size(); i++) {
+            nodes.set(i, keyed.get(i).node);
+        }
+    }
 
-            // PS3 [Select the most extreme pair] Choose the pair with the greatest
-            // normalized separation along any dimension.
-            // Note that if negative it means the rectangles overlapped. However still include
-            // overlapping rectangles if that is the only choice available.
-            if (normalizedSeparation >= maxNormalizedSeparation) {
-                highestLowIndex = tempHighestLowIndex;
-                lowestHighIndex = tempLowestHighIndex;
-                maxNormalizedSeparation = normalizedSeparation;
+    /**
+     * Used by bulkLoad(). Packs consecutive runs of maxNodeEntries nodes into
+     * new nodes of the given level. If the last run would have less than
+     * minNodeEntries, it is evened out with the run before it.
+     */
+    private ArrayList<Node> packLevel(List<Node> nodes, int level) {
+        ArrayList<Node> parents = new ArrayList<Node>();
+        int from = 0;
+        while (from < nodes.size()) {
+            int to = Math.min(from + maxNodeEntries, nodes.size());
+            int rest = nodes.size() - to;
+            if (rest > 0 && rest < minNodeEntries) {
+                // split the last maxNodeEntries + rest nodes into two halves
+                to = from + (maxNodeEntries + rest + 1) / 2;
             }
+            Node parent = new Node(level, maxNodeEntries, minNodeEntries, generation);
+            for (int i = from; i < to; i++) {
+                parent.addEntry(nodes.get(i));
+            }
+            parents.add(parent);
+            from = to;
         }
+        return parents;
+    }
+
+    /**
+     * Writes the tree to a stream in a compact binary form, which readFrom()
+     * turns back into the same tree. See TreeFormat for the layout.
+     *
+     * @param out The stream to write to. It is not flushed or closed.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        writeTo(Channels.newChannel(out));
+    }
 
-        // At this point it is possible that the new rectangle is both highestLow and lowestHigh.
-        // This can happen if all rectangles in the node overlap the new rectangle.
-        // Resolve this by declaring that the highestLowIndex is the lowest Y and,
-        // the lowestHighIndex is the largest X (but always a different rectangle)
-        if (highestLowIndex == lowestHighIndex) {
-            highestLowIndex = -1;
-            Double tempMinY = s.getmindim();
-            lowestHighIndex = 0;
-            Double tempMaxX = n.get(0).copyt().getmaxdim();
+    /**
+     * Writes the tree to a channel, such as a FileChannel.
+     *
+     * @see #writeTo(OutputStream)
+     */
+    public void writeTo(WritableByteChannel out) throws IOException {
+        TreeFormat.Writer writer = new TreeFormat.Writer(out);
+        writer.putInt(TreeFormat.MAGIC);
+        writer.putInt(TreeFormat.VERSION);
+        writer.putInt(root.getdim());
+        writer.putInt(maxNodeEntries);
+        writer.putInt(minNodeEntries);
+        writer.putInt(size);
+        writer.putInt(root.getLevel());
+        writeNode(writer, root);
+        writer.flush();
+    }
 
-            for (int c = 1; c < n.size(); c++) {
-                double newmin = n.get(c).copys().getmindim();
-                double newmax = n.get(c).copyt().getmaxdim();
-                if (newmin < tempMinY) {
-                    tempMinY = newmin;
-                    highestLowIndex = c;
-                } else if (newmax > tempMaxX) {
-                    tempMaxX = newmax;
-                    lowestHighIndex = c;
+    // Used by writeTo(). Writes n and its subtree, depth first.
+    private void writeNode(TreeFormat.Writer writer, Node n) throws IOException {
+        writer.putInt(n.size());
+        if (n.isLeaf()) {
+            int dim = n.getdim();
+            for (int i=0; i<n.size(); i++) {
+                for (int d=0; d<dim; d++) {
+                    writer.putDouble(n.getEntryMin(i, d));
+                }
+                for (int d=0; d<dim; d++) {
+                    writer.putDouble(n.getEntryMax(i, d));
                 }
             }
+        } else {
+            for (int i=0; i<n.size(); i++) {
+                writeNode(writer, n.get(i));
+            }
         }
+    }
+
+    /**
+     * Replaces the entries of the tree with those written by writeTo(). The
+     * nodes are rebuilt as they were written, in one pass over the data, with
+     * no searching or splitting, so this is faster than bulkLoad(). The node
+     * sizes of the written tree replace those of this tree; the other
+     * properties are kept.
+     *
+     * Reads are buffered, so data after the tree in the same stream may be
+     * consumed too.
+     *
+     * @param in The stream to read from. It is not closed.
+     *
+     * @return the handles of the entries, in the order they were written,
+     * which is the order of the leaves from left to right.
+     *
+     * @throws IOException if the data is not a tree written by writeTo(), or
+     * cannot be read.
+     */
+    public ArrayList<Entry> readFrom(InputStream in) throws IOException {
+        return readFrom(Channels.newChannel(in));
+    }
 
-        assert highestLowIndex != lowestHighIndex : "splitNode highestLowIndex equals lowestHighIndex!";
+    /**
+     * Reads the tree from a channel, such as a FileChannel.
+     *
+     * @see #readFrom(InputStream)
+     */
+    public ArrayList<Entry> readFrom(ReadableByteChannel in) throws IOException {
+        checkWritable();
+        TreeFormat.Reader reader = new TreeFormat.Reader(in);
+        if (reader.getInt() != TreeFormat.MAGIC) {
+            throw new IOException("Not an RTree");
+        }
+        int formatVersion = reader.getInt();
+        if (formatVersion != TreeFormat.VERSION) {
+            throw new IOException("Unsupported RTree format version " + formatVersion);
+        }
+        int dim = reader.getInt();
+        int max = reader.getInt();
+        int min = reader.getInt();
+        int entries = reader.getInt();
+        int level = reader.getInt();
+        if (dim < 0 || max < 2 || min < 1 || min > max / 2 || entries < 0 || level < 1) {
+            throw new IOException("Corrupt RTree header");
+        }
 
-        ArrayList<Node> seed = new ArrayList<Node>();
-        if (highestLowIndex != -1) {
-            seed.add(n.get(highestLowIndex));
-        } else {
-            seed.add(null);
+        ArrayList<Entry> handles = new ArrayList<Entry>(entries);
+        maxNodeEntries = max;
+        minNodeEntries = min;
+        Node node = readNode(reader, level, dim, handles, true);
+        if (node.getTotal() != entries) {
+            throw new IOException("Corrupt RTree: " + node.getTotal() + " entries found, " + entries + " expected");
         }
-        if (lowestHighIndex != -1) {
-            seed.add(n.get(lowestHighIndex));
+        root = node;
+        size = entries;
+
+        if (INTERNAL_CONSISTENCY_CHECKING) {
+            assert checkConsistency();
+        }
+        return handles;
+    }
+
+    // Used by readFrom(). Reads a node of the given level and its subtree.
+    // Each node is filled before it is added to its parent, so the totals
+    // and MBRs never have to be passed up more than one level.
+    private Node readNode(TreeFormat.Reader reader, int level, int dim,
+            ArrayList<Entry> handles, boolean isRoot) throws IOException {
+        int count = reader.getInt();
+        if (count > maxNodeEntries || (count < 1 && !isRoot) || (count > 0 && dim < 2)) {
+            throw new IOException("Corrupt RTree: node with " + count + " entries");
+        }
+        Node n = new Node(level, maxNodeEntries, minNodeEntries, generation);
+        if (level == 1) {
+            double[] min = new double[dim];
+            double[] max = new double[dim];
+            for (int i=0; i<count; i++) {
+                reader.getDoubles(min, 0, dim);
+                reader.getDoubles(max, 0, dim);
+                Node rect = new Node(min, max);
+                n.addEntry(rect);
+                handles.add(rect);
+            }
         } else {
-            seed.add(null);
+            for (int i=0; i<count; i++) {
+                n.addEntry(readNode(reader, level - 1, dim, handles, false));
+            }
+        }
+        return n;
+    }
+
+    /**
+     * A node and the Hilbert index of its centre, ordered by the index.
+     */
+    private static class HilbertEntry implements Comparable<HilbertEntry> {
+
+        private final Node node;
+        private final long[] index;
+
+        HilbertEntry(Node node, long[] index) {
+            this.node = node;
+            this.index = index;
+        }
+
+        public int compareTo(HilbertEntry e) {
+            return HilbertCurve.compare(index, e.index);
+        }
+    }
+
+    /**
+     * Orders nodes by the centre of their MBR along one dimension.
+     */
+    private static class CentreComparator implements Comparator<Node> {
+
+        private final int d;
+
+        CentreComparator(int d) {
+            this.d = d;
+        }
+
+        public int compare(Node n1, Node n2) {
+            return Double.compare(n1.getMin(d) + n1.getMax(d), n2.getMin(d) + n2.getMax(d));
+        }
+    }
+
+
+
+    /**
+     * Split a node with the split strategy of the tree.
+     *
+     * @return new node object.
+     */
+    private Node splitNode(Node n, Node rect) {
+        Node newNode = new Node(n.getLevel(), maxNodeEntries, minNodeEntries, generation);
+        splitStrategy.split(n, rect, newNode, maxNodeEntries, minNodeEntries);
+        return newNode;
+    }
+
+    /**
+     * Used by add() in R* mode, when n has overflowed. Removes the entries
+     * whose centres are furthest from the centre of n, and inserts them again
+     * starting with the closest one ("close reinsert"), so that they may find
+     * a better place in the tree before n has to be split.
+     */
+    private void reinsert(Node n) {
+        // RI1, RI2 [Sort the entries by the distance between their centres
+        // and the centre of the bounding rectangle of n]
+        final double[] dist = new double[n.size()];
+        ArrayList<Node> entries = n.copyEntry();
+        for (int i = 0; i < n.size(); i++) {
+            dist[i] = n.entryCentreDistanceSq(i);
+        }
+        Integer[] order = new Integer[entries.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(dist[i2], dist[i1]);
+            }
+        });
+
+        // RI3 [Remove the first p entries from n and adjust the bounding
+        // rectangle of n]
+        int p = Math.max(1, (int) Math.round(maxNodeEntries * RSTAR_REINSERT_FRACTION));
+        ArrayList<Node> removed = new ArrayList<Node>(p);
+        for (int i = 0; i < p; i++) {
+            Node e = entries.get(order[i]);
+            n.deleteEntry(e);
+            removed.add(e);
         }
-        return seed;
 
+        // RI4 [Invoke Insert with the removed entries, starting with the
+        // minimum distance]
+        for (int i = removed.size() - 1; i >= 0; i--) {
+            add(removed.get(i), n.getLevel());
+        }
     }
 
     /**
-     * Pick the next entry to be assigned to a group during a node split.
+     * Used by delete(Rectangle). Finds the leaf entry holding r.
      *
-     * [Determine cost of putting each entry in each group] For each entry not
-     * yet in a group, calculate the area increase required in the covering
-     * rectangles of each group
-     */
-    private ArrayList<Node> pickNext(Node n, Node newNode, ArrayList<Node> rect) {
-        Node nextNode = null; 
-        Node nextEntry = null;
-        Double maxDifference = Double.NEGATIVE_INFINITY;
-        for (int i = 0; i < rect.size(); i++) {
-
-            Double nIncrease = n.enlargement(rect.get(i));
-            Double newNodeIncrease = newNode.enlargement(rect.get(i));
-            Double difference = Math.abs(nIncrease - newNodeIncrease);
-            if (difference > maxDifference) {
-                nextEntry = rect.get(i);
-                if (nIncrease < newNodeIncrease) {
-                    nextNode = n;
-                } else if (newNodeIncrease < nIncrease) {
-                    nextNode = newNode;
-                } else if (n.area() < newNode.area()) {
-                    nextNode = n;
-                } else if (newNode.area() > n.area()) {
-                    nextNode = newNode;
-                } else if (newNode.size() < maxNodeEntries / 2) {
-                    nextNode = n;
+     * Note the "official" FindLeaf algorithm searches all overlapping
+     * entries. This seems inefficient, as an entry is only worth searching
+     * if it contains (NOT overlaps) the rectangle we are searching for. Also
+     * the algorithm has been changed so that it is not recursive.
+     */
+    private Node findEntry(Rectangle r) {
+        if (root.size() == 0 || !root.contains(r)) {
+            return null;
+        }
+        // FL1 [Search subtrees] If root is not a leaf, check each entry
+        // to determine if it contains r. For each entry found, invoke
+        // findLeaf on the node pointed to by the entry, until r is found or
+        // all entries have been checked.
+        Stack<Node> parents = new Stack<Node>();
+        parents.push(root);
+        while (!parents.isEmpty()) {
+            Node n = parents.pop();
+            for (int i = 0; i < n.size(); i++) {
+                if (!n.entryContains(i, r)) {
+                    continue;
+                }
+                // FL2 [Search leaf node for record] If n is a leaf, check each
+                // entry to see if it matches r
+                if (n.isLeaf()) {
+                    if (n.get(i).getRef() == r) {
+                        return n.get(i);
+                    }
                 } else {
-                    nextNode = newNode;
+                    parents.push(n.get(i));
                 }
-                maxDifference = difference;
             }
         }
-        assert nextNode != null;
-        assert nextEntry != null;
-        ArrayList<Node> next = new ArrayList<Node>();
-        next.add(nextNode);
-        next.add(nextEntry);
-        return next;
+        return null;
     }
 
+    /**
+     * Used by delete(Entry). Checks that rect is a leaf entry which is still
+     * in this tree, by following the parent pointers up to the root.
+     */
+    private boolean isEntryOf(Node rect) {
+        if (rect.getLevel() != 0 || rect.getParent() == null) {
+            return false;
+        }
+        Node n = rect;
+        while (n.getParent() != null) {
+            n = n.getParent();
+        }
+        return n == root;
+    }
 
     /**
      * Used by delete(). Ensures that all nodes from the passed node up to the
@@ -685,26 +1666,100 @@ public class RTree implements SpatialIndex {
             // CL3 [Choose subtree] If N is not at the desired level, let F be the entry in N 
             // whose rectangle FI needs least enlargement to include EI. Resolve
             // ties by choosing the entry with the rectangle of smaller area.
-            Double leastEnlargement = Double.MAX_VALUE;
-            Node leastEnlargementNode = null;
+            if (insertionMethod.equals(INSERTION_RSTAR) && n.getLevel() == 2) {
+                // R* CS2 If the children of N are leaves, choose the entry
+                // whose rectangle needs least overlap enlargement to include
+                // EI, resolving ties as below
+                n = n.get(leastOverlapEnlargement(n, rect));
+                continue;
+            }
+            double leastEnlargement = Double.MAX_VALUE;
+            int leastEnlargementIndex = -1;
             for (int i = 0; i < n.size(); i++) {
-                Double enlargement = n.get(i).enlargement(rect);
+                double enlargement = n.entryEnlargement(i, rect);
                 if ((enlargement < leastEnlargement)
                         || ((enlargement == leastEnlargement)
-                        && (n.get(i).area() < leastEnlargementNode.area()))) {
-                    leastEnlargementNode = n.get(i);
+                        && (n.entryArea(i) < n.entryArea(leastEnlargementIndex)))) {
+                    leastEnlargementIndex = i;
                     leastEnlargement = enlargement;
                 }
             }
 
             // CL4 [Descend until a leaf is reached] Set N to be the child node 
             // pointed to by Fp and repeat from CL2
-            n = leastEnlargementNode;
+            n = n.get(leastEnlargementIndex);
         }
         
         return n;
     }
 
+    /**
+     * Used by chooseNode() in R* mode. Finds the entry of n which needs least
+     * overlap enlargement to include rect. Resolve ties by choosing the
+     * entry which needs least area enlargement, then the one with the
+     * rectangle of smaller area. As computing the overlap is quadratic in the
+     * number of entries, only the RSTAR_OVERLAP_CANDIDATES entries with least
+     * area enlargement are considered, as proposed by Beckmann et al.
+     */
+    private int leastOverlapEnlargement(Node n, Node rect) {
+        // An entry which already contains rect needs neither overlap nor
+        // area enlargement, so the smallest such entry wins outright
+        int containingIndex = -1;
+        for (int i = 0; i < n.size(); i++) {
+            if (n.entryContains(i, rect)
+                    && (containingIndex < 0 || n.entryArea(i) < n.entryArea(containingIndex))) {
+                containingIndex = i;
+            }
+        }
+        if (containingIndex >= 0) {
+            return containingIndex;
+        }
+
+        OverlapScratch scratch = overlapScratch;
+        scratch.ensure(n.size());
+        double[] enlargements = scratch.enlargements;
+        int[] candidates = scratch.candidates;
+        // keep the entries with least area enlargement, in order of
+        // enlargement and then of index, by insertion into a sorted prefix
+        int candidateCount = 0;
+        for (int i = 0; i < n.size(); i++) {
+            double enlargement = n.entryEnlargement(i, rect);
+            enlargements[i] = enlargement;
+            int c = Math.min(candidateCount, RSTAR_OVERLAP_CANDIDATES - 1);
+            if (candidateCount == RSTAR_OVERLAP_CANDIDATES
+                    && Double.compare(enlargements[candidates[c]], enlargement) <= 0) {
+                continue;
+            }
+            while (c > 0 && Double.compare(enlargements[candidates[c - 1]], enlargement) > 0) {
+                candidates[c] = candidates[c - 1];
+                c--;
+            }
+            candidates[c] = i;
+            candidateCount = Math.min(candidateCount + 1, RSTAR_OVERLAP_CANDIDATES);
+        }
+
+        double leastOverlap = Double.MAX_VALUE;
+        double leastEnlargement = Double.MAX_VALUE;
+        int leastIndex = -1;
+        for (int c = 0; c < candidateCount; c++) {
+            int i = candidates[c];
+            double overlap = n.entryOverlapEnlargement(i, rect, scratch.before, scratch.after);
+            if (overlap > leastOverlap) {
+                continue;
+            }
+            double enlargement = enlargements[i];
+            if ((overlap < leastOverlap)
+                    || (enlargement < leastEnlargement)
+                    || ((enlargement == leastEnlargement)
+                    && (n.entryArea(i) < n.entryArea(leastIndex)))) {
+                leastIndex = i;
+                leastOverlap = overlap;
+                leastEnlargement = enlargement;
+            }
+        }
+        return leastIndex;
+    }
+
     /**
      * Ascend from a leaf node L to the root, adjusting covering rectangles and
      * propagating node splits as necessary.
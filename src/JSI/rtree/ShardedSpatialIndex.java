@@ -0,0 +1,586 @@
+//   ShardedSpatialIndex.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi.rtree;
+
+import com.infomatiq.jsi.Entry;
+import com.infomatiq.jsi.NeighborIterator;
+import com.infomatiq.jsi.Point;
+import com.infomatiq.jsi.Rectangle;
+import com.infomatiq.jsi.SpatialIndex;
+import com.infomatiq.jsi.Visitor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Properties;
+
+/**
+ * <p>A thread safe spatial index made of a number of independent trees, the
+ * shards, each covering a part of the space. Each shard is a ConcurrentRTree
+ * with a lock of its own, so threads adding or deleting entries in different
+ * parts of the space do not wait for each other, and queries only lock the
+ * shards they need.</p>
+ *
+ * <p>The space is cut into ranges of the Hilbert curve over a bounding
+ * rectangle fixed when the index is created, and an entry goes to the shard
+ * whose range holds the Hilbert index of its centre. Centres outside the
+ * bounding rectangle are clamped onto it, so any rectangle can be added,
+ * but the shards are only balanced for data spread like the rectangles the
+ * partition was chosen from. The partition never changes, so an entry can
+ * always be found again from its rectangle alone.</p>
+ *
+ * <p>A query spanning several shards takes their locks one at a time, so it
+ * may see a change made to one shard during the query and miss one made to
+ * another. Each change is seen whole or not at all.</p>
+ */
+public class ShardedSpatialIndex implements SpatialIndex {
+
+    // bits per dimension of the Hilbert grid used for routing; only the top
+    // 63 bits of the index are used, so more would be wasted
+    private static final int MAX_HILBERT_BITS = 16;
+
+    private final ConcurrentRTree[] shards;
+    private final double[] lo;
+    private final double[] hi;
+    private final int bits;
+    // shard i holds the keys in [splits[i-1], splits[i])
+    private final long[] splits;
+
+    /**
+     * Creates an index whose shards cover equal lengths of the Hilbert curve
+     * over bounds.
+     *
+     * @param bounds The part of the space the data is expected in.
+     * @param shards The number of shards.
+     */
+    public ShardedSpatialIndex(Rectangle bounds, int shards) {
+        this(bounds, shards, null);
+    }
+
+    /**
+     * Creates an index whose shards each hold the same number of the
+     * rectangles of sample. The sample is only used to choose the partition,
+     * and is not added to the index.
+     *
+     * @param sample Rectangles spread like the data to be indexed.
+     * @param shards The number of shards.
+     */
+    public ShardedSpatialIndex(Collection<Rectangle> sample, int shards) {
+        this(union(sample), shards, sample);
+    }
+
+    private ShardedSpatialIndex(Rectangle bounds, int shards, Collection<Rectangle> sample) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards must be at least 1");
+        }
+        int dim = bounds.getdim();
+        lo = new double[dim];
+        hi = new double[dim];
+        for (int d = 0; d < dim; d++) {
+            lo[d] = bounds.getMin(d);
+            hi[d] = bounds.getMax(d);
+        }
+        bits = Math.max(1, Math.min(MAX_HILBERT_BITS, 63 / dim));
+
+        splits = new long[shards - 1];
+        if (sample == null) {
+            for (int i = 0; i < splits.length; i++) {
+                splits[i] = Long.MAX_VALUE / shards * (i + 1);
+            }
+        } else {
+            long[] keys = new long[sample.size()];
+            int n = 0;
+            for (Rectangle r : sample) {
+                keys[n++] = key(r);
+            }
+            Arrays.sort(keys);
+            for (int i = 0; i < splits.length; i++) {
+                splits[i] = keys[(int) ((long) keys.length * (i + 1) / shards)];
+            }
+        }
+
+        this.shards = new ConcurrentRTree[shards];
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = new ConcurrentRTree();
+        }
+    }
+
+    private static Rectangle union(Collection<Rectangle> rects) {
+        if (rects.isEmpty()) {
+            throw new IllegalArgumentException("sample must not be empty");
+        }
+        Rectangle bounds = null;
+        for (Rectangle r : rects) {
+            if (bounds == null) {
+                bounds = r.copy();
+            } else {
+                bounds.enlarge(r);
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Used to route an entry. Returns the top 63 bits of the Hilbert index of
+     * the centre of r, as a non negative long.
+     */
+    private long key(Rectangle r) {
+        long cells = (1L << bits) - 1;
+        long[] cell = new long[lo.length];
+        for (int d = 0; d < lo.length; d++) {
+            if (hi[d] > lo[d]) {
+                double centre = (r.getMin(d) + r.getMax(d)) / 2;
+                double f = Math.min(Math.max((centre - lo[d]) / (hi[d] - lo[d]), 0.0), 1.0);
+                cell[d] = (long) (f * cells);
+            }
+        }
+        return HilbertCurve.index(cell, bits)[0] >>> 1;
+    }
+
+    /**
+     * Returns the shard an entry with the rectangle r belongs to.
+     */
+    private ConcurrentRTree shardOf(Rectangle r) {
+        return shards[shardIndex(r)];
+    }
+
+    /**
+     * Returns the shard the entry e was added to. This is found from the box
+     * e was inserted with, which the Node of the entry keeps, as the
+     * rectangle of e may have been changed in place since.
+     */
+    private ConcurrentRTree shardOf(Entry e) {
+        return shardOf(e instanceof Node ? (Node) e : e.getRef());
+    }
+
+    private int shardIndex(Rectangle r) {
+        long key = key(r);
+        // the number of splits no greater than key
+        int low = 0;
+        int high = splits.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (splits[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Initializes the properties of every shard.
+     *
+     * @see RTree#init(Properties)
+     */
+    public void init(Properties props) {
+        for (ConcurrentRTree shard : shards) {
+            shard.init(props);
+        }
+    }
+
+    /**
+     * Replaces the contents of the index with rects, bulk loading each shard
+     * with its part of them. The shards are loaded one after another, so a
+     * concurrent query may see some of them loaded and others not.
+     *
+     * @see RTree#bulkLoad(Collection)
+     *
+     * @return the handles of the new entries, in the iteration order of rects
+     */
+    public ArrayList<Entry> bulkLoad(Collection<Rectangle> rects) {
+        ArrayList<ArrayList<Rectangle>> parts = new ArrayList<ArrayList<Rectangle>>(shards.length);
+        ArrayList<Integer> partOf = new ArrayList<Integer>(rects.size());
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(new ArrayList<Rectangle>());
+        }
+        for (Rectangle r : rects) {
+            int i = shardIndex(r);
+            parts.get(i).add(r);
+            partOf.add(i);
+        }
+
+        ArrayList<ArrayList<Entry>> loaded = new ArrayList<ArrayList<Entry>>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            loaded.add(shards[i].bulkLoad(parts.get(i)));
+        }
+        // put the handles back in the order of rects
+        int[] next = new int[shards.length];
+        ArrayList<Entry> handles = new ArrayList<Entry>(rects.size());
+        for (int i : partOf) {
+            handles.add(loaded.get(i).get(next[i]++));
+        }
+        return handles;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#add(Rectangle)
+     */
+    public Entry add(Rectangle r) {
+        return shardOf(r).add(r);
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#delete(Rectangle)
+     */
+    public boolean delete(Rectangle r) {
+        return shardOf(r).delete(r);
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#delete(Entry)
+     */
+    public boolean delete(Entry e) {
+        return shardOf(e).delete(e);
+    }
+
+    /**
+     * Deletes an entry and adds a rectangle in its place. If both belong to
+     * the same shard, this is a single change, as ConcurrentRTree.replace()
+     * is; otherwise the new entry is added after the old one is deleted.
+     *
+     * @return the handle of the new entry, or null if e was not an entry of
+     * this index, in which case nothing is changed.
+     */
+    public Entry replace(Entry e, Rectangle r) {
+        ConcurrentRTree from = shardOf(e);
+        ConcurrentRTree to = shardOf(r);
+        if (from == to) {
+            return from.replace(e, r);
+        }
+        if (!from.delete(e)) {
+            return null;
+        }
+        return to.add(r);
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#intersects(Rectangle)
+     */
+    public boolean intersects(Rectangle r) {
+        for (ConcurrentRTree shard : shards) {
+            Rectangle bounds = shard.getBounds();
+            if (bounds != null && bounds.intersects(r) && shard.intersects(r)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#intersects(Rectangle, Visitor)
+     */
+    public boolean intersects(Rectangle r, Visitor v) {
+        for (ConcurrentRTree shard : shards) {
+            Rectangle bounds = shard.getBounds();
+            if (bounds != null && bounds.intersects(r) && !shard.intersects(r, v)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#withinDistance(Point, double, Visitor)
+     */
+    public boolean withinDistance(Point p, double distance, Visitor v) {
+        double[] q = p.getCoords();
+        for (ConcurrentRTree shard : shards) {
+            Rectangle bounds = shard.getBounds();
+            if (bounds != null && bounds.mindistSq(q) <= distance * distance
+                    && !shard.withinDistance(p, distance, v)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#contains(Rectangle)
+     */
+    public ArrayList<Rectangle> contains(Rectangle r) {
+        ArrayList<Rectangle> result = new ArrayList<Rectangle>();
+        for (ConcurrentRTree shard : shards) {
+            Rectangle bounds = shard.getBounds();
+            if (bounds != null && bounds.intersects(r)) {
+                result.addAll(shard.contains(r));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#contains(Rectangle, Visitor)
+     */
+    public boolean contains(Rectangle r, Visitor v) {
+        for (ConcurrentRTree shard : shards) {
+            Rectangle bounds = shard.getBounds();
+            if (bounds != null && bounds.intersects(r) && !shard.contains(r, v)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#count(Rectangle)
+     */
+    public int count(Rectangle r) {
+        int count = 0;
+        for (ConcurrentRTree shard : shards) {
+            Rectangle bounds = shard.getBounds();
+            if (bounds != null && bounds.intersects(r)) {
+                count += shard.count(r);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#size()
+     */
+    public int size() {
+        int size = 0;
+        for (ConcurrentRTree shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#getBounds()
+     */
+    public Rectangle getBounds() {
+        Rectangle result = null;
+        for (ConcurrentRTree shard : shards) {
+            Rectangle bounds = shard.getBounds();
+            if (bounds == null) {
+                continue;
+            }
+            if (result == null) {
+                result = bounds.copy();
+            } else {
+                result.enlarge(bounds);
+            }
+        }
+        return result;
+    }
+
+    public int getdim() {
+        return lo.length;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#getVersion()
+     */
+    public String getVersion() {
+        return "Sharded" + shards[0].getVersion();
+    }
+
+    /**
+     * Returns the number of shards.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Finds the k nearest rectangles of each shard that may hold one of the
+     * k nearest overall, nearest shard first, and keeps the k nearest of
+     * them. A shard is skipped once its bounds are further from p than the
+     * k-th nearest rectangle found so far.
+     *
+     * @see com.infomatiq.jsi.SpatialIndex#nearestN(Point, int)
+     */
+    public ArrayList<Rectangle> nearestN(Point p, int k) {
+        assert k > 0;
+        double[] q = p.getCoords();
+        Rectangle[] bounds = new Rectangle[shards.length];
+        double[] dist = new double[shards.length];
+        Integer[] order = shardsByDistance(q, bounds, dist);
+
+        BoundedMaxHeap<Rectangle> knn = new BoundedMaxHeap<Rectangle>(k);
+        for (int i : order) {
+            if (dist[i] > knn.threshold()) {
+                break;
+            }
+            for (Rectangle r : shards[i].nearestN(p, k)) {
+                knn.insert(r, r.mindistSq(q));
+            }
+        }
+        ArrayList<Rectangle> result = new ArrayList<Rectangle>(knn.size());
+        knn.drainAscending(result);
+        return result;
+    }
+
+    /**
+     * @see com.infomatiq.jsi.SpatialIndex#nearestNBatch(List, int)
+     */
+    public ArrayList<ArrayList<Rectangle>> nearestNBatch(List<Point> points, int k) {
+        ArrayList<ArrayList<Rectangle>> result = new ArrayList<ArrayList<Rectangle>>(points.size());
+        for (Point p : points) {
+            result.add(nearestN(p, k));
+        }
+        return result;
+    }
+
+    /**
+     * Merges the iterators of the shards. The iterator of a shard is only
+     * started once the search has come as far as its bounds.
+     *
+     * @see com.infomatiq.jsi.SpatialIndex#nearestIterator(Point)
+     */
+    public NeighborIterator nearestIterator(Point p) {
+        Rectangle[] bounds = new Rectangle[shards.length];
+        double[] dist = new double[shards.length];
+        Integer[] order = shardsByDistance(p.getCoords(), bounds, dist);
+        return new MergedIterator(p, order, dist);
+    }
+
+    /**
+     * Check the consistency of every shard.
+     *
+     * @see RTree#checkConsistency()
+     */
+    public boolean checkConsistency() {
+        for (ConcurrentRTree shard : shards) {
+            if (!shard.checkConsistency()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Used by the nearest neighbour queries. Reads the bounds of each shard
+     * and its squared MINDIST from q, and returns the indexes of the non
+     * empty shards, nearest first.
+     */
+    private Integer[] shardsByDistance(double[] q, Rectangle[] bounds, final double[] dist) {
+        ArrayList<Integer> order = new ArrayList<Integer>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            bounds[i] = shards[i].getBounds();
+            if (bounds[i] != null) {
+                dist[i] = bounds[i].mindistSq(q);
+                order.add(i);
+            }
+        }
+        Integer[] result = order.toArray(new Integer[order.size()]);
+        Arrays.sort(result, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(dist[i1], dist[i2]);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * The next rectangle of the iterator of one shard.
+     */
+    private static class Head {
+
+        private final NeighborIterator iterator;
+        private Rectangle next;
+        private double distance;
+
+        Head(NeighborIterator iterator) {
+            this.iterator = iterator;
+        }
+
+        // false if the iterator is exhausted
+        boolean advance() {
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            next = iterator.next();
+            distance = iterator.distance();
+            return true;
+        }
+    }
+
+    /**
+     * Used by nearestIterator().
+     */
+    private class MergedIterator implements NeighborIterator {
+
+        private final Point p;
+        private final Integer[] order;
+        private final double[] dist;
+        // the number of shards of order whose iterators are started
+        private int started = 0;
+        private final PriorityQueue<Head> heads;
+        private double distance = Double.NaN;
+
+        MergedIterator(Point p, Integer[] order, double[] dist) {
+            this.p = p;
+            this.order = order;
+            this.dist = dist;
+            heads = new PriorityQueue<Head>(Math.max(1, order.length), new Comparator<Head>() {
+                public int compare(Head h1, Head h2) {
+                    return Double.compare(h1.distance, h2.distance);
+                }
+            });
+        }
+
+        // start the iterators of the shards which may hold something no
+        // further than the nearest head
+        private void startShards() {
+            while (started < order.length) {
+                double d = Math.sqrt(dist[order[started]]);
+                if (!heads.isEmpty() && d > heads.peek().distance) {
+                    break;
+                }
+                Head head = new Head(shards[order[started]].nearestIterator(p));
+                if (head.advance()) {
+                    heads.add(head);
+                }
+                started++;
+            }
+        }
+
+        public boolean hasNext() {
+            startShards();
+            return !heads.isEmpty();
+        }
+
+        public Rectangle next() {
+            startShards();
+            Head head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            Rectangle result = head.next;
+            distance = head.distance;
+            if (head.advance()) {
+                heads.add(head);
+            }
+            return result;
+        }
+
+        public double distance() {
+            return distance;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+//   SlotArena.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi.rtree;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * <p>Used by OffHeapRTree. Fixed size slots of memory outside the Java heap,
+ * numbered from 0 and kept in direct buffers of about a megabyte each, so
+ * that the garbage collector sees only the few buffer objects however many
+ * slots are in use. Freed slots are kept in a free list threaded through
+ * their first four bytes, and handed out again before the arena grows. The
+ * memory is never returned while the arena is in use.</p>
+ *
+ * <p>Not thread safe. The buffers returned by buffer() are in native byte
+ * order, and are only read with absolute gets and puts.</p>
+ */
+class SlotArena {
+
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int NONE = -1;
+
+    private final int slotSize;
+    // number of slots per chunk is 2^slotBits
+    private final int slotBits;
+    private ByteBuffer[] chunks = new ByteBuffer[16];
+    private int chunkCount = 0;
+    // slots ever handed out; those below are either in use or free
+    private int top = 0;
+    // head of the free list
+    private int free = NONE;
+    private int used = 0;
+
+    SlotArena(int slotSize) {
+        if (slotSize < 4) {
+            throw new IllegalArgumentException("Slot size must be at least 4 bytes");
+        }
+        this.slotSize = slotSize;
+        slotBits = 31 - Integer.numberOfLeadingZeros(Math.max(CHUNK_SIZE / slotSize, 1));
+    }
+
+    /**
+     * Returns an unused slot. A slot that has been freed keeps its contents,
+     * apart from the first four bytes; a new slot is zeroed.
+     */
+    int allocate() {
+        used++;
+        if (free != NONE) {
+            int slot = free;
+            free = buffer(slot).getInt(offset(slot));
+            return slot;
+        }
+        if (top >>> slotBits == chunkCount) {
+            if ((long) (chunkCount + 1) << slotBits > Integer.MAX_VALUE) {
+                used--;
+                throw new IllegalStateException("Too many slots in arena");
+            }
+            if (chunkCount == chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunkCount * 2);
+            }
+            chunks[chunkCount++] = ByteBuffer.allocateDirect(slotSize << slotBits).order(ByteOrder.nativeOrder());
+        }
+        return top++;
+    }
+
+    /**
+     * Puts slot on the free list. Its first four bytes are overwritten.
+     */
+    void free(int slot) {
+        assert slot >= 0 && slot < top;
+        buffer(slot).putInt(offset(slot), free);
+        free = slot;
+        used--;
+    }
+
+    /**
+     * Returns the buffer that holds slot, at the offset given by offset().
+     */
+    ByteBuffer buffer(int slot) {
+        return chunks[slot >>> slotBits];
+    }
+
+    int offset(int slot) {
+        return (slot & ((1 << slotBits) - 1)) * slotSize;
+    }
+
+    /**
+     * Returns the number of slots in use.
+     */
+    int size() {
+        return used;
+    }
+
+    /**
+     * Returns the number of bytes of memory reserved by the arena.
+     */
+    long reservedBytes() {
+        return (long) chunkCount * slotSize << slotBits;
+    }
+}
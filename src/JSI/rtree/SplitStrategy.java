@@ -0,0 +1,47 @@
+//   SplitStrategy.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi.rtree;
+
+/**
+ * <p>Splits an overflowing node of an RTree in two. A split strategy trades
+ * the cost of insertion against the quality of the resulting tree: cheap
+ * splits suit small, frequently changing indexes such as a sliding window,
+ * while more expensive splits that minimise overlap and margin pay off for
+ * large indexes that are queried many times.</p>
+ *
+ * <p>The implementations provided are LinearSplit and QuadraticSplit from
+ * Guttman's original paper, RStarSplit from the R*-tree of Beckmann et al.,
+ * and AngTanSplit, the linear split of Ang and Tan. Use
+ * RTree.setSplitStrategy(), or the SplitStrategy property of RTree.init(),
+ * to select one.</p>
+ */
+public interface SplitStrategy {
+
+    /**
+     * Distribute the entries of a full node, together with one more entry,
+     * between that node and a new, empty node at the same level.
+     *
+     * @param n The node to split. It holds maxNodeEntries entries, and holds
+     * one of the two groups on return.
+     * @param rect The entry that caused the overflow.
+     * @param newNode The empty node which holds the other group on return.
+     * @param maxNodeEntries The maximum number of entries in a node.
+     * @param minNodeEntries The minimum number of entries each group must
+     * hold.
+     */
+    void split(Node n, Node rect, Node newNode, int maxNodeEntries, int minNodeEntries);
+}
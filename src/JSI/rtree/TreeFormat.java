@@ -0,0 +1,134 @@
+//   TreeFormat.java
+//   Java Spatial Index Library
+//  
+//  This library is free software; you can redistribute it and/or
+//  modify it under the terms of the GNU Lesser General Public
+//  License as published by the Free Software Foundation; either
+//  version 2.1 of the License, or (at your option) any later version.
+//  
+//  This library is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//  Lesser General Public License for more details.
+//  
+//  You should have received a copy of the GNU Lesser General Public
+//  License along with this library; if not, write to the Free Software
+//  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+package com.infomatiq.jsi.rtree;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * <p>Used by RTree to write a tree to a channel and read it back. The format
+ * is little-endian throughout:</p>
+ *
+ * <pre>
+ * header:  magic "JSIR", format version, dimension, max node entries,
+ *          min node entries, number of entries, level of the root (int32 each)
+ * nodes:   in depth first order, from the root; for each node:
+ *          number of entries (int32), then for a leaf the min and the max
+ *          corner of each entry ((2 * dimension) float64 per entry)
+ * </pre>
+ *
+ * <p>The MBRs of the non leaf nodes are not stored, as they are rebuilt
+ * exactly from the leaf entries as the nodes are read.</p>
+ */
+class TreeFormat {
+
+    // "JSIR" in little-endian
+    static final int MAGIC = 'J' | 'S' << 8 | 'I' << 16 | 'R' << 24;
+    static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private TreeFormat() {
+    }
+
+    /**
+     * Buffered little-endian writes to a channel.
+     */
+    static class Writer {
+
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        Writer(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        void putInt(int value) throws IOException {
+            if (buffer.remaining() < 4) {
+                flush();
+            }
+            buffer.putInt(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            if (buffer.remaining() < 8) {
+                flush();
+            }
+            buffer.putDouble(value);
+        }
+
+        // write out whatever is buffered
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Buffered little-endian reads from a channel.
+     */
+    static class Reader {
+
+        private final ReadableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        Reader(ReadableByteChannel channel) {
+            this.channel = channel;
+            buffer.flip();
+        }
+
+        int getInt() throws IOException {
+            require(4);
+            return buffer.getInt();
+        }
+
+        // read n doubles into dst[off..off+n)
+        void getDoubles(double[] dst, int off, int n) throws IOException {
+            while (n > 0) {
+                require(8);
+                int chunk = Math.min(n, buffer.remaining() / 8);
+                DoubleBuffer doubles = buffer.asDoubleBuffer();
+                doubles.get(dst, off, chunk);
+                buffer.position(buffer.position() + chunk * 8);
+                off += chunk;
+                n -= chunk;
+            }
+        }
+
+        // make sure at least n bytes are buffered
+        private void require(int n) throws IOException {
+            if (buffer.remaining() >= n) {
+                return;
+            }
+            buffer.compact();
+            while (buffer.position() < n) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Unexpected end of RTree data");
+                }
+            }
+            buffer.flip();
+        }
+    }
+}